@@ -8,46 +8,107 @@ public class ChatListener {
 	String channel;
 	int rows;
 	int nextRead;
+	// the id of the cursor and the position it tells
+	final String id;
+	int told;
 
-	public ChatListener(TupleSpace ts, String channel, int rows, int nextRead) {
+	public ChatListener(TupleSpace ts, String channel, int rows, int nextRead,
+			String id) {
 		this.ts = ts;
 		this.channel = channel;
 		this.rows = rows;
 		this.nextRead = nextRead;
+		this.id = id;
+		told = nextRead;
 	}
 	
+	/*
+	 * The cursor is moved every (rows + 1) / 2 messages, so it is never 
+	 * rows behind while this client waits for a message, and the writer of 
+	 * that message does not wait for this client (see ChatServer).
+	 */
 	public String getNextMessage() {
 		String nr = Integer.toString(nextRead);
 
-		String[] tuple;
-		// get reading signal
-		tuple = ts.get(channel, ChatServer.SIGNALS, nr, null);
-		int signals = Integer.parseInt(tuple[3]);
+		// read message, waiting for it to be written
+		String[] tuple = ts.read(channel, ChatServer.MESSAGE, nr, null);
 		
-		// read message
-		tuple = ts.read(channel, ChatServer.MESSAGE, nr, null);
-		
-		// signal chat servers
-		ts.put(channel, ChatServer.SIGNALS, nr, Integer.toString(signals - 1));		
-		
-		nextRead++;
+		advance(1);
 		return tuple[3];
 	}
 
-	public void closeConnection() {
-		String[] tuple;
-		
-		// get latest readable position
-		tuple = ts.get(channel, ChatServer.CONNECTIONS, null, null);
-		int ccNum = Integer.parseInt(tuple[2]);
-		int lrInt = Integer.parseInt(tuple[3]);
-		
-		// consume the not-yet-reading signals for this client
-		while (nextRead <= lrInt) {
-			getNextMessage();
+	/*
+	 * Returns the messages from nextRead on that are written already, at 
+	 * most max of them, waiting only when there is none yet. All of them 
+	 * come from a single readAll, and the cursor is moved once for the lot.
+	 */
+	public String[] getNextMessages(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive");
 		}
-		
-		// update number of client connections
-		ts.put(channel, ChatServer.CONNECTIONS, Integer.toString(ccNum - 1), tuple[3]);
+		String[][] tuples = ts.readAll(channel, ChatServer.MESSAGE, null, null);
+		String[] texts = new String[Math.min(max, Math.max(rows, 1))];
+		int n = collect(tuples, texts);
+		if (n == 0) {
+			// nothing written yet, wait for the next one and then take the rest
+			ts.read(channel, ChatServer.MESSAGE, Integer.toString(nextRead), 
+					null);
+			n = collect(ts.readAll(channel, ChatServer.MESSAGE, null, null), 
+					texts);
+		}
+		advance(n);
+		if (n == texts.length) {
+			return texts;
+		}
+		String[] got = new String[n];
+		System.arraycopy(texts, 0, got, 0, n);
+		return got;
+	}
+
+	/*
+	 * Puts the texts of the consecutive messages from nextRead on into 
+	 * texts and returns how many there are. Messages before nextRead may 
+	 * be among the tuples still, the ones after it are not reclaimed as 
+	 * the cursor of this client keeps them.
+	 */
+	private int collect(String[][] tuples, String[] texts) {
+		for (String[] tuple : tuples) {
+			int k = Integer.parseInt(tuple[2]) - nextRead;
+			if (k >= 0 && k < texts.length) {
+				texts[k] = tuple[3];
+			}
+		}
+		int n = 0;
+		while (n < texts.length && texts[n] != null) {
+			n++;
+		}
+		return n;
+	}
+
+	private void advance(int n) {
+		nextRead += n;
+		if (nextRead - told >= (rows + 1) / 2) {
+			tell();
+		}
+	}
+
+	/*
+	 * Remove the cursor, so that the messages this client has not read can
+	 * be reclaimed at once, and wake the writers waiting for them.
+	 */
+	public void closeConnection() {
+		ts.get(channel, ChatServer.CURSOR, id, Integer.toString(told));
+		ChatServer.wake(ts, channel, id, Integer.MAX_VALUE);
+	}
+	
+	/*
+	 * Move the cursor to nextRead. The new one is put before the old one 
+	 * is taken, so that a writer never misses this client.
+	 */
+	private void tell() {
+		ts.put(channel, ChatServer.CURSOR, id, Integer.toString(nextRead));
+		ts.get(channel, ChatServer.CURSOR, id, Integer.toString(told));
+		told = nextRead;
+		ChatServer.wake(ts, channel, id, told);
 	}
 }
@@ -3,6 +3,7 @@ package chat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.UUID;
 
 import tuplespaces.TupleSpace;
 
@@ -16,24 +17,45 @@ import tuplespaces.TupleSpace;
  * NEXTWRITE	["Foo", "nxw", "21"]
  * 		The next writing position of "Foo" channel is 21.
  * 
- * CONNECTIONS	["Foo", "con", "5", "20"]
- * 		There are 5 clients listening to "Foo" channel and the latest
- * 		position available to read is 20.
+ * CURSOR		["Foo", "cur", "7f3a...", "15"]
+ * 		The client 7f3a... listening to "Foo" channel has read the 
+ * 		messages before position 15, as far as it has told.
  * 
- * SIGNALS		["Foo", "sgl", "20", "4"]
- * 		The message sent to channel "Foo" in position 20 still needs 4
- * 		clients to read.
+ * WAIT		["Foo", "wai", "7f3a...", "12"]
+ * 		A writer waits for the client 7f3a... of "Foo" channel to read the
+ * 		message in position 12, so that it can reclaim it.
+ * 
+ * WAKE		["Foo", "wak", "12"]
+ * 		A client has read the message in position 12 since the writer 
+ * 		waiting for it last looked at the cursors.
  * 
  * MESSAGE		["Foo", "msg", "20", "hello"]
  * 		The message sent to channel "Foo" in position 20 is "Hello".
+ * 
+ * A writer holds the NEXTWRITE tuple of its channel only to reserve a 
+ * position: it takes the tuple and puts it back advanced. Then, if the 
+ * channel is full, it reads all CURSORs to see whether the oldest message
+ * has been read by every client, reclaims it and puts its own, while other
+ * writers reserve and write the next positions. A client reads the messages
+ * in order, with one read each, and moves its CURSOR only every few 
+ * messages. A writer that finds clients behind files a WAIT for the one 
+ * furthest behind and looks again; that client turns it into a WAKE when 
+ * it moves its CURSOR past the WAIT or disconnects, after which the writer
+ * looks again.
+ * 
+ * A client connects by putting its CURSOR at the last rows positions 
+ * reserved while it holds NEXTWRITE. Writers of lower positions reclaim
+ * only messages below these, and writers of higher ones see the CURSOR, so
+ * that none of the messages it is to read is reclaimed.
  */
 
 public class ChatServer {
 	
 	public static final String 	CHANNELSET 		= "chs";
 	public static final String 	NEXTWRITE 		= "nxw";
-	public static final String 	CONNECTIONS 	= "con";
-	public static final String 	SIGNALS			= "sgl";
+	public static final String 	CURSOR			= "cur";
+	public static final String 	WAIT			= "wai";
+	public static final String 	WAKE			= "wak";
 	public static final String 	MESSAGE 		= "msg";
 	
 	final TupleSpace ts;
@@ -50,7 +72,6 @@ public class ChatServer {
 		for (String ch : channelNames) {
 			if (chSet.add(ch, rows)) {
 				ts.put(ch, NEXTWRITE, "0");
-				ts.put(ch, CONNECTIONS, "0", "-1");
 			}
 		}
 		ts.put(CHANNELSET, chSet.toString());	
@@ -79,33 +100,48 @@ public class ChatServer {
 	public void writeMessage(String channel, String message) {
 		String[] tuple;
 
-		// disable other chat servers and get writing position
+		// reserve the writing position and let other writers reserve the 
+		// next one
 		tuple = ts.get(channel, NEXTWRITE, null);
 		String nw = tuple[2];
-		int nwInt = Integer.parseInt(tuple[2]);
+		int nwInt = Integer.parseInt(nw);
+		ts.put(channel, NEXTWRITE, Integer.toString(nwInt + 1));
 		
 		int rows = chSet.getRows(channel);
 		if (nwInt >= rows) {
-			// wait for oldest message
-			String old = Integer.toString(nwInt - rows);
-			ts.get(channel, SIGNALS, old, "0");
-			// reclaim oldest message
-			ts.get(channel, MESSAGE, old, null);
+			// wait for oldest message to be read by all clients and reclaim
+			// it, waiting for its writer if it has not been written yet
+			int old = nwInt - rows;
+			String oldStr = Integer.toString(old);
+			String id;
+			while ((id = behind(channel, old)) != null) {
+				ts.put(channel, WAIT, id, oldStr);
+				if (id.equals(behind(channel, old)) || 
+						ts.tryGet(channel, WAIT, id, oldStr) == null) {
+					ts.get(channel, WAKE, oldStr);
+				}
+			}
+			ts.get(channel, MESSAGE, oldStr, null);
 		}
 		
-		// put latest message into current writing position
 		ts.put(channel, MESSAGE, nw, message);
-		
-		// get the number of connections and signal clients that 
-		// message is ready to read
-		tuple = ts.get(channel, CONNECTIONS, null, null);
-		ts.put(channel, SIGNALS, nw, tuple[2]);
-		
-		// update latest readable position
-		ts.put(channel, CONNECTIONS, tuple[2], nw);
-		
-		// enable other chat servers
-		ts.put(channel, NEXTWRITE, Integer.toString(nwInt + 1));
+	}
+	
+	/*
+	 * Return the id of the client that is furthest behind among those that 
+	 * have not told that they read position old, or null if there is none.
+	 */
+	private String behind(String channel, int old) {
+		String id = null;
+		int least = old + 1;
+		for (String[] cursor : ts.readAll(channel, CURSOR, null, null)) {
+			int at = Integer.parseInt(cursor[3]);
+			if (at < least) {
+				least = at;
+				id = cursor[2];
+			}
+		}
+		return id;
 	}
 
 	public ChatListener openConnection(String channel) {
@@ -122,24 +158,24 @@ public class ChatServer {
 		if (nwInt > rows)
 			nrInt = nwInt - rows;
 		
-		// signal the new client that the messages from next reading position 
-		// to latest readable position (which is nwInt - 1) are ready to read
-		for (int i = nrInt; i < nwInt; i++) {
-			String read = Integer.toString(i);
-			tuple = ts.get(channel, SIGNALS, read, null);
-			int lsNum = Integer.parseInt(tuple[3]);
-			ts.put(channel, SIGNALS, read, Integer.toString(lsNum + 1));
-		}
-		
-		// update number of client connections
-		tuple = ts.get(channel, CONNECTIONS, null, null);
-		int ccNum = Integer.parseInt(tuple[2]);
-		ts.put(channel, CONNECTIONS, Integer.toString(ccNum + 1), tuple[3]);
-		
-		// enable other chat servers
-		ts.put(channel, NEXTWRITE, Integer.toString(nwInt));
+		// put the cursor and enable other chat servers
+		String id = UUID.randomUUID().toString();
+		ts.putAll(new String[] { channel, CURSOR, id, Integer.toString(nrInt) },
+				tuple);
 		
-		return new ChatListener(ts, channel, rows, nrInt);
+		return new ChatListener(ts, channel, rows, nrInt, id);
+	}
+	
+	/*
+	 * Wake the writers waiting for client id to read the messages before 
+	 * position below, after its cursor has been moved to below or removed.
+	 */
+	static void wake(TupleSpace ts, String channel, String id, int below) {
+		for (String[] wait : ts.readAll(channel, WAIT, id, null)) {
+			if (Integer.parseInt(wait[3]) < below && ts.tryGet(wait) != null) {
+				ts.put(channel, WAKE, wait[3]);
+			}
+		}
 	}
 	
 	
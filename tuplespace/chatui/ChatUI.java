@@ -32,11 +32,18 @@ public class ChatUI extends JFrame {
 	protected long listeners = 0;
 
 	public ChatUI(String host, int port) {
-		this(new ChatServer(new TupleProxy(host, port)));
+		this(new ChatServer(proxy(host, port)));
 	}
 
 	public ChatUI(String host, int port, int bufferSize, String[] channels) {
-		this(new ChatServer(new TupleProxy(host, port), bufferSize, channels));
+		this(new ChatServer(proxy(host, port), bufferSize, channels));
+	}
+
+	/* Messages are put without waiting for the server to acknowledge them. */
+	private static TupleProxy proxy(String host, int port) {
+		TupleProxy proxy = new TupleProxy(host, port);
+		proxy.setPipelined(true);
+		return proxy;
 	}
 
 	private ChatUI(ChatServer cs) {
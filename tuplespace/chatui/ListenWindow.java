@@ -11,6 +11,7 @@ import chat.ChatServer;
  */
 @SuppressWarnings("serial")
 public class ListenWindow extends JFrame {
+	protected static final int BATCH = 100;
 	protected final ChatListener listener;
 	protected final ChatServer server;
 	protected final JTextArea messages;
@@ -46,10 +47,13 @@ public class ListenWindow extends JFrame {
 		Thread t = new Thread() {
 			public void run() {
 				while (!done) {
-					final String m = listener.getNextMessage();
+					/* Catches up with a flood in a few reads. */
+					final StringBuilder m = new StringBuilder();
+					for (String s : listener.getNextMessages(BATCH))
+						m.append(s).append('\n');
 					SwingUtilities.invokeLater(new Runnable() {
 						public void run() {
-							messages.append(m + "\n");
+							messages.append(m.toString());
 						}
 					});
 				}
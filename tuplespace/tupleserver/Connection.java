@@ -0,0 +1,97 @@
+package tupleserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/*
+ The server side of a connection to a TupleProxy, whichever way its bytes are
+ moved. TupleServer.dispatch carries out the requests read from it and
+ answers through write and writeAll, which may be called by any thread.
+ */
+abstract class Connection {
+	private final TupleServer server;
+	/* Gets and reads not answered yet, cancelled if the client leaves. */
+	private final HashMap<Long, CompletableFuture<String[]>> pending =
+			new HashMap<Long, CompletableFuture<String[]>>();
+	/* Completed once the last 'A' is written, see TupleServer.acknowledge. */
+	CompletableFuture<Void> acked = CompletableFuture.completedFuture(null);
+
+	Connection(TupleServer server) {
+		this.server = server;
+		server.getStats().connected();
+	}
+
+	/* Answer 'A' or 'N' (tuple is null), or 'R' or 'T' with the tuple. */
+	abstract void write(char c, long id, String[] tuple);
+
+	/* Answer 'M' with the tuples. */
+	abstract void writeAll(long id, String[][] tuples);
+
+	/*
+	 Answers a get or read once its future is completed, which is done by
+	 the thread putting the tuple, so no thread waits for the tuple. A
+	 blocking get or read is answered with 'R' and the tuple. A timed one
+	 (timeout 0 meaning try) is answered with 'T' and the tuple, or 'N' if
+	 no tuple was found. The answer is written by the answers executor. A
+	 wait that is cancelled is answered with 'N' at once.
+	 */
+	void answer(final long id, final boolean timed,
+			final CompletableFuture<String[]> f) {
+		final ServerStats stats = server.getStats();
+		final long start = System.nanoTime();
+		stats.waitStarted();
+		synchronized (pending) {
+			pending.put(id, f);
+		}
+		f.whenComplete(new BiConsumer<String[], Throwable>() {
+			public void accept(final String[] tuple, Throwable e) {
+				synchronized (pending) {
+					pending.remove(id);
+				}
+				Runnable write = new Runnable() {
+					public void run() {
+						if (tuple == null)
+							write('N', id, null);
+						else
+							write(timed ? 'T' : 'R', id, tuple);
+						stats.answered(start);
+					}
+				};
+				if (e != null) {
+					stats.cancelled();
+					write('N', id, null);
+				} else if (server.answers == null)
+					write.run();
+				else
+					server.answers.execute(write);
+			}
+		});
+	}
+
+	/*
+	 Withdraws the get or read with the given id, which the client has
+	 cancelled. Nothing is done if it has been answered; a waiter that has
+	 been handed a tuple cannot be cancelled (see LocalTupleSpace.Waiter).
+	 */
+	void withdraw(long id) {
+		CompletableFuture<String[]> f;
+		synchronized (pending) {
+			f = pending.get(id);
+		}
+		if (f != null)
+			f.cancel(false);
+	}
+
+	/* Called once the client has gone. */
+	void closed() {
+		ArrayList<CompletableFuture<String[]>> left;
+		synchronized (pending) {
+			left = new ArrayList<CompletableFuture<String[]>>(pending.values());
+		}
+		for (CompletableFuture<String[]> f : left)
+			f.cancel(false);
+		server.getStats().disconnected();
+	}
+}
@@ -0,0 +1,383 @@
+package tupleserver;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ Reads and writes the TupleSocket formats in ByteBuffers, for the selector
+ server and for TupleSocket itself in version 2.
+
+ Version 1 is what DataOutputStream writes: a command is a char, a long id,
+ its arguments as ints and longs and its tuples; a tuple is an int length
+ and, per field, a boolean telling whether it is not null, followed by the
+ field as written by writeUTF (an unsigned short byte count and modified
+ UTF-8, so at most 64KB).
+
+ Version 2 sends each command as a frame: its byte count and the command,
+ which is a byte, the id and its arguments, all numbers as unsigned varints
+ (7 bits per byte, low bits first). A tuple is its length, a bitmap with a
+ bit set for each null field, and the other fields as byte count and UTF-8.
+ */
+class Frames {
+	/*
+	 Reads one request from the buffer. If the buffer does not hold all of
+	 it, returns null and leaves the buffer position where it was.
+	 */
+	static Request read(ByteBuffer in, int version) {
+		int start = in.position();
+		ByteBuffer frame = in;
+		try {
+			if (version >= 2) {
+				long declared = getVarLong(in);
+				if (declared < 0 || declared > TupleSocket.MAX_FRAME)
+					throw new RuntimeException("Frame too long");
+				int length = (int) declared;
+				if (in.remaining() < length) {
+					in.position(start);
+					return null;
+				}
+				/* The frame is parsed where it lies. */
+				frame = in.slice();
+				frame.limit(length);
+				in.position(in.position() + length);
+			}
+			return readRequest(frame, version);
+		} catch (BufferUnderflowException e) {
+			if (frame != in)
+				throw new RuntimeException("Truncated frame");
+			in.position(start);
+			return null;
+		}
+	}
+
+	private static Request readRequest(ByteBuffer in, int version) {
+		Request r = new Request();
+		r.command = getCommand(in, version);
+		r.id = getLong(in, version);
+		switch (r.command) {
+		case 'g':
+		case 'r':
+		case 'L':
+			r.timeout = getLong(in, version);
+			r.tuple = getTuple(in, version);
+			break;
+		case 'B':
+			r.tuples = new String[checkLength(in, getInt(in, version))][];
+			for (int i = 0; i < r.tuples.length; i++)
+				r.tuples[i] = getTuple(in, version);
+			break;
+		case 'D':
+			r.max = getInt(in, version);
+			r.tuple = getTuple(in, version);
+			break;
+		case 'P':
+		case 'G':
+		case 'R':
+		case 'S':
+			r.tuple = getTuple(in, version);
+			break;
+		case 'C':
+			break;
+		default:
+			throw new RuntimeException("Unknown command");
+		}
+		return r;
+	}
+
+	/*
+	 Every tuple, and every field in version 1, takes at least a byte, so a
+	 length beyond the bytes left means the rest has not arrived; nothing is
+	 allocated for it yet.
+	 */
+	private static int checkLength(ByteBuffer in, int length) {
+		if (length < 0)
+			throw new RuntimeException("Negative length");
+		if (length > in.remaining())
+			throw new BufferUnderflowException();
+		return length;
+	}
+
+	static char getCommand(ByteBuffer in, int version) {
+		return (version >= 2) ? (char) (in.get() & 0xff) : in.getChar();
+	}
+
+	static int getInt(ByteBuffer in, int version) {
+		return (version >= 2) ? (int) getVarLong(in) : in.getInt();
+	}
+
+	static long getLong(ByteBuffer in, int version) {
+		return (version >= 2) ? getVarLong(in) : in.getLong();
+	}
+
+	static String[] getTuple(ByteBuffer in, int version) {
+		int length = getInt(in, version);
+		if (version < 2) {
+			String[] tuple = new String[checkLength(in, length)];
+			for (int i = 0; i < tuple.length; i++) {
+				if (in.get() != 0)
+					tuple[i] = getModifiedUTF8(in);
+			}
+			return tuple;
+		}
+
+		/* A null field takes a bit of the bitmap only. */
+		if (length < 0)
+			throw new RuntimeException("Negative length");
+		int nulls = in.position();
+		in.position(nulls + checkLength(in, (length + 7) / 8));
+		String[] tuple = new String[length];
+		for (int i = 0; i < length; i++) {
+			if ((in.get(nulls + i / 8) & 1 << i % 8) == 0)
+				tuple[i] = getUTF8(in, checkLength(in, getInt(in, version)));
+		}
+		return tuple;
+	}
+
+	private static String getUTF8(ByteBuffer in, int length) {
+		String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(),
+					length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	private static String getModifiedUTF8(ByteBuffer in) {
+		int length = in.getShort() & 0xffff;
+		if (in.remaining() < length)
+			throw new BufferUnderflowException();
+		char[] chars = new char[length];
+		int n = 0, end = in.position() + length;
+		while (in.position() < end) {
+			int b = in.get() & 0xff;
+			if (b < 0x80)
+				chars[n++] = (char) b;
+			else if ((b & 0xe0) == 0xc0)
+				chars[n++] = (char) ((b & 0x1f) << 6 | in.get() & 0x3f);
+			else
+				chars[n++] = (char) ((b & 0x0f) << 12 | (in.get() & 0x3f) << 6
+						| in.get() & 0x3f);
+		}
+		return new String(chars, 0, n);
+	}
+
+	static long getVarLong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new RuntimeException("Varint too long");
+	}
+
+	/* Bytes taken by the frame header of a command of the given size. */
+	static int frameSize(int version, int size) {
+		return (version >= 2) ? varSize(size) + size : size;
+	}
+
+	static int commandSize(int version, long id) {
+		return (version >= 2) ? 1 + varSize(id) : 2 + 8;
+	}
+
+	static int intSize(int version, int i) {
+		return (version >= 2) ? varSize(i & 0xffffffffL) : 4;
+	}
+
+	static int longSize(int version, long l) {
+		return (version >= 2) ? varSize(l) : 8;
+	}
+
+	static int tupleSize(int version, String[] tuple) {
+		int size = intSize(version, tuple.length);
+		if (version >= 2)
+			size += (tuple.length + 7) / 8;
+		for (String s : tuple) {
+			if (version >= 2) {
+				if (s != null)
+					size += intSize(version, utf8Length(s)) + utf8Length(s);
+			} else
+				size += (s == null) ? 1 : 3 + modifiedUTF8Length(s);
+		}
+		return size;
+	}
+
+	static int varSize(long l) {
+		int size = 1;
+		while ((l >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	/* Starts a command whose size, without the frame header, is given. */
+	static void putFrame(ByteBuffer out, int version, int size) {
+		if (version >= 2)
+			putVarLong(out, size);
+	}
+
+	static void putCommand(ByteBuffer out, int version, char c, long id) {
+		if (version >= 2) {
+			out.put((byte) c);
+			putVarLong(out, id);
+		} else {
+			out.putChar(c);
+			out.putLong(id);
+		}
+	}
+
+	static void putInt(ByteBuffer out, int version, int i) {
+		if (version >= 2)
+			putVarLong(out, i & 0xffffffffL);
+		else
+			out.putInt(i);
+	}
+
+	static void putLong(ByteBuffer out, int version, long l) {
+		if (version >= 2)
+			putVarLong(out, l);
+		else
+			out.putLong(l);
+	}
+
+	static void putTuple(ByteBuffer out, int version, String[] tuple) {
+		putInt(out, version, tuple.length);
+		if (version >= 2) {
+			int nulls = out.position();
+			for (int i = 0; i < (tuple.length + 7) / 8; i++)
+				out.put((byte) 0);
+			for (int i = 0; i < tuple.length; i++) {
+				if (tuple[i] == null)
+					out.put(nulls + i / 8,
+							(byte) (out.get(nulls + i / 8) | 1 << i % 8));
+				else {
+					putInt(out, version, utf8Length(tuple[i]));
+					putUTF8(out, tuple[i]);
+				}
+			}
+		} else {
+			for (String s : tuple) {
+				if (s == null)
+					out.put((byte) 0);
+				else {
+					out.put((byte) 1);
+					putModifiedUTF8(out, s);
+				}
+			}
+		}
+	}
+
+	static void putVarLong(ByteBuffer out, long l) {
+		while ((l & ~0x7fL) != 0) {
+			out.put((byte) (l & 0x7f | 0x80));
+			l >>>= 7;
+		}
+		out.put((byte) l);
+	}
+
+	/* As String.getBytes: a surrogate without its pair becomes '?'. */
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				length += 1;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	private static void putUTF8(ByteBuffer out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				out.put((byte) c);
+			else if (c < 0x800) {
+				out.put((byte) (0xc0 | c >> 6));
+				out.put((byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int p = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xf0 | p >> 18));
+				out.put((byte) (0x80 | p >> 12 & 0x3f));
+				out.put((byte) (0x80 | p >> 6 & 0x3f));
+				out.put((byte) (0x80 | p & 0x3f));
+			} else if (Character.isSurrogate(c))
+				out.put((byte) '?');
+			else {
+				out.put((byte) (0xe0 | c >> 12));
+				out.put((byte) (0x80 | c >> 6 & 0x3f));
+				out.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	private static int modifiedUTF8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 1 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+		}
+		return length;
+	}
+
+	private static void putModifiedUTF8(ByteBuffer out, String s) {
+		int length = modifiedUTF8Length(s);
+		if (length > 0xffff)
+			throw new IllegalArgumentException("Field too long");
+		out.putShort((short) length);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 1 && c < 0x80)
+				out.put((byte) c);
+			else if (c < 0x800) {
+				out.put((byte) (0xc0 | c >> 6));
+				out.put((byte) (0x80 | c & 0x3f));
+			} else {
+				out.put((byte) (0xe0 | c >> 12));
+				out.put((byte) (0x80 | c >> 6 & 0x3f));
+				out.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	/*
+	 Makes room for n more bytes, keeping the ones between 0 and position.
+	 The grown buffer is direct if the old one was.
+	 */
+	static ByteBuffer ensure(ByteBuffer b, int n) {
+		if (b.remaining() >= n)
+			return b;
+		int capacity = b.capacity();
+		while (capacity - b.position() < n)
+			capacity *= 2;
+		ByteBuffer grown = b.isDirect() ? ByteBuffer.allocateDirect(capacity)
+				: ByteBuffer.allocate(capacity);
+		b.flip();
+		grown.put(b);
+		return grown;
+	}
+
+	/* Drops a buffer that grew beyond large once it holds nothing. */
+	static ByteBuffer shrink(ByteBuffer b, int small, int large) {
+		if (b.position() == 0 && b.capacity() > large)
+			return b.isDirect() ? ByteBuffer.allocateDirect(small) : ByteBuffer
+					.allocate(small);
+		return b;
+	}
+}
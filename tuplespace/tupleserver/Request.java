@@ -0,0 +1,23 @@
+package tupleserver;
+
+/*
+ A command received from a TupleProxy. Which fields are set depends on the
+ command:
+   'P' tuple                 put, answered with 'A'
+   'L' timeout, tuple        put with a time to live, answered with 'A'
+   'G', 'R' tuple            get or read, answered with 'R'
+   'g', 'r' timeout, tuple   timed get or read, answered with 'T' or 'N'
+   'B' tuples                putAll, answered with 'A'
+   'D' max, tuple            getAll, answered with 'M'
+   'S' tuple                 readAll, answered with 'M'
+   'C'                       withdraw the get or read with this id, which
+                             is answered with 'N' unless it was answered
+ */
+class Request {
+	char command;
+	long id;
+	long timeout;
+	int max = Integer.MAX_VALUE;
+	String[] tuple;
+	String[][] tuples;
+}
@@ -0,0 +1,302 @@
+package tupleserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ Non-blocking front end of a TupleServer. The accepting thread hands each
+ connection to one of a few I/O threads, each of which serves its
+ connections with a Selector. A connection costs no thread, only two small
+ direct buffers that grow while a large frame passes and shrink back after.
+
+ Requests are parsed from the input buffer as they arrive (Frames.read
+ leaves an incomplete one for the next read) and dispatched on the I/O
+ thread; none of them blocks. The first bytes of a connection tell which
+ version of the format it speaks, as TupleSocket.accept does. Answers may
+ be written by any thread: they are appended to the output buffer under the
+ connection's monitor and the connection is queued for its I/O thread to
+ write, which waits for OP_WRITE only if the client does not keep up.
+ */
+class SelectorServer {
+	public static final int SMALL = 1024, LARGE = 65536;
+	private final TupleServer server;
+	private final Loop[] loops;
+
+	SelectorServer(TupleServer server, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one I/O thread");
+		this.server = server;
+		loops = new Loop[threads];
+		for (int i = 0; i < threads; i++)
+			loops[i] = new Loop(i);
+	}
+
+	/*
+	 Accepts connections until the server is closed, spreading them over the
+	 I/O threads.
+	 */
+	void execute(ServerSocketChannel ssocket) {
+		for (Loop l : loops)
+			l.start();
+		for (int next = 0;; next = (next + 1) % loops.length) {
+			try {
+				loops[next].add(ssocket.accept());
+			} catch (IOException ioe) {
+				if (server.isClosed())
+					return;
+				System.exit(1);
+			}
+		}
+	}
+
+	/* Stops the I/O threads, which close their connections. */
+	void close() {
+		for (Loop l : loops) {
+			l.closing = true;
+			l.selector.wakeup();
+		}
+	}
+
+	private class Loop extends Thread {
+		private final Selector selector;
+		/* Accepted channels not registered yet. */
+		private final ConcurrentLinkedQueue<SocketChannel> accepted =
+				new ConcurrentLinkedQueue<SocketChannel>();
+		/* Connections with answers to write. */
+		private final ConcurrentLinkedQueue<Channel> ready =
+				new ConcurrentLinkedQueue<Channel>();
+		volatile boolean closing;
+
+		Loop(int i) {
+			super("TupleServer I/O " + i);
+			setDaemon(true);
+			try {
+				selector = Selector.open();
+			} catch (IOException ioe) {
+				throw new RuntimeException("Selector failure", ioe);
+			}
+		}
+
+		void add(SocketChannel c) {
+			accepted.add(c);
+			selector.wakeup();
+		}
+
+		/* Queues a connection to be written, waking the loop if need be. */
+		void ready(Channel c) {
+			ready.add(c);
+			if (Thread.currentThread() != this)
+				selector.wakeup();
+		}
+
+		public void run() {
+			while (!closing) {
+				try {
+					selector.select();
+				} catch (IOException ioe) {
+					throw new RuntimeException("Selector failure", ioe);
+				}
+				SocketChannel sc;
+				while ((sc = accepted.poll()) != null)
+					register(sc);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Channel c = (Channel) key.attachment();
+					if (key.isValid() && key.isReadable())
+						c.read();
+					if (key.isValid() && key.isWritable())
+						c.flush();
+				}
+				/* Written after reading so that pipelined answers share a write. */
+				Channel c;
+				while ((c = ready.poll()) != null)
+					c.flush();
+			}
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+				((Channel) key.attachment()).close();
+			SocketChannel sc;
+			while ((sc = accepted.poll()) != null)
+				close(sc);
+			try {
+				selector.close();
+			} catch (IOException ioe) {
+			}
+		}
+
+		private void register(SocketChannel sc) {
+			try {
+				sc.configureBlocking(false);
+				sc.socket().setTcpNoDelay(true);
+				Channel c = new Channel(this, sc);
+				c.key = sc.register(selector, SelectionKey.OP_READ, c);
+			} catch (IOException ioe) {
+				close(sc);
+			}
+		}
+
+		private void close(SocketChannel sc) {
+			try {
+				sc.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private class Channel extends Connection {
+		private final Loop loop;
+		private final SocketChannel channel;
+		SelectionKey key;
+		/* Only used by the I/O thread. */
+		private ByteBuffer in = ByteBuffer.allocateDirect(SMALL);
+		/* Guarded by this; queued is set while waiting in loop.ready. */
+		private ByteBuffer out = ByteBuffer.allocateDirect(SMALL);
+		private boolean queued, closed;
+		/* Format spoken, 0 until the client has shown which. */
+		private volatile int version;
+
+		Channel(Loop loop, SocketChannel channel) {
+			super(server);
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				Request r;
+				if (version > 0 || handshake())
+					while ((r = Frames.read(in, version)) != null)
+						server.dispatch(r, this);
+				in.compact();
+				/* A frame fills the buffer: make room for the rest of it. */
+				if (!in.hasRemaining())
+					in = Frames.ensure(in, in.capacity());
+				in = Frames.shrink(in, SMALL, LARGE);
+			} catch (IOException ioe) {
+				close();
+			} catch (RuntimeException re) {
+				/* Garbled input; the client is not to be trusted any more. */
+				close();
+			}
+		}
+
+		/*
+		 A version 1 client starts with a command, whose first byte is 0; a
+		 newer one asks for a version, which is answered at once. Returns
+		 false until the first bytes have arrived.
+		 */
+		private boolean handshake() {
+			if (!in.hasRemaining())
+				return false;
+			if (in.get(in.position()) != TupleSocket.HELLO) {
+				version = 1;
+				return true;
+			}
+			if (in.remaining() < 2)
+				return false;
+			in.get();
+			int agreed = Math.max(1, Math.min(in.get(), TupleSocket.VERSION));
+			synchronized (this) {
+				out = Frames.ensure(out, 1);
+				out.put((byte) agreed);
+			}
+			version = agreed;
+			queue();
+			return true;
+		}
+
+		void write(char c, long id, String[] tuple) {
+			int v = version, size = Frames.commandSize(v, id);
+			if (tuple != null)
+				size += Frames.tupleSize(v, tuple);
+			synchronized (this) {
+				if (closed)
+					return;
+				out = Frames.ensure(out, Frames.frameSize(v, size));
+				Frames.putFrame(out, v, size);
+				Frames.putCommand(out, v, c, id);
+				if (tuple != null)
+					Frames.putTuple(out, v, tuple);
+			}
+			queue();
+		}
+
+		void writeAll(long id, String[][] tuples) {
+			int v = version, size = Frames.commandSize(v, id)
+					+ Frames.intSize(v, tuples.length);
+			for (String[] tuple : tuples)
+				size += Frames.tupleSize(v, tuple);
+			synchronized (this) {
+				if (closed)
+					return;
+				out = Frames.ensure(out, Frames.frameSize(v, size));
+				Frames.putFrame(out, v, size);
+				Frames.putCommand(out, v, 'M', id);
+				Frames.putInt(out, v, tuples.length);
+				for (String[] tuple : tuples)
+					Frames.putTuple(out, v, tuple);
+			}
+			queue();
+		}
+
+		private void queue() {
+			synchronized (this) {
+				if (queued)
+					return;
+				queued = true;
+			}
+			loop.ready(this);
+		}
+
+		/* Writes what the socket takes, waiting for OP_WRITE for the rest. */
+		void flush() {
+			boolean left, failed = false;
+			synchronized (this) {
+				queued = false;
+				if (closed)
+					return;
+				out.flip();
+				try {
+					channel.write(out);
+				} catch (IOException ioe) {
+					failed = true;
+				}
+				out.compact();
+				left = out.position() > 0;
+				out = Frames.shrink(out, SMALL, LARGE);
+			}
+			if (failed)
+				close();
+			else
+				key.interestOps(left ? SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void close() {
+			if (!key.isValid())
+				return;
+			synchronized (this) {
+				closed = true;
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+			}
+			closed();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package tupleserver;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Counters of a TupleServer: connections, gets and reads waiting for an
+ answer, and the time from receiving a get or read to writing its answer.
+ Waits cancelled because their client left, or failed, are counted apart
+ and have no latency.
+ All counters are updated without locking and may be read at any time.
+ */
+public class ServerStats {
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong answers = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final ThreadPoolExecutor pool;
+
+	/* The pool writing the answers, if any, is included in the report. */
+	ServerStats(ThreadPoolExecutor pool) {
+		this.pool = pool;
+	}
+
+	void connected() {
+		connections.incrementAndGet();
+	}
+
+	void disconnected() {
+		connections.decrementAndGet();
+	}
+
+	void waitStarted() {
+		waits.incrementAndGet();
+	}
+
+	void answered(long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		answers.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while ((max = maxNanos.get()) < nanos
+				&& !maxNanos.compareAndSet(max, nanos))
+			;
+	}
+
+	void cancelled() {
+		cancelled.incrementAndGet();
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/* Gets and reads received but not answered (nor cancelled) yet. */
+	public long getPendingWaits() {
+		return waits.get() - answers.get() - cancelled.get();
+	}
+
+	public long getAnswers() {
+		return answers.get();
+	}
+
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	public double getMeanLatencyMillis() {
+		long n = answers.get();
+		return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+	}
+
+	public double getMaxLatencyMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+	/* Live threads of the whole server process. */
+	public int getThreadCount() {
+		return Thread.activeCount();
+	}
+
+	public String toString() {
+		return "connections " + getConnections() + ", threads "
+				+ getThreadCount()
+				+ (pool == null ? "" : " (answer pool " + pool.getPoolSize()
+						+ ", queued " + pool.getQueue().size() + ")")
+				+ ", pending waits " + getPendingWaits() + ", answers "
+				+ getAnswers() + ", cancelled " + getCancelled()
+				+ ", latency mean "
+				+ String.format("%.3f", getMeanLatencyMillis()) + " ms max "
+				+ String.format("%.3f", getMaxLatencyMillis()) + " ms";
+	}
+}
@@ -3,27 +3,60 @@ package tupleserver;
 import tuplespaces.*;
 import java.io.*;
 import java.net.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Tuple space implementation that connects to a TupleServer, allowing a tuple
- * space to be shared between processes using TCP.
+ * space to be shared between processes using TCP. Gets and reads are sent to
+ * the server at once; their futures are kept by id until the answer arrives,
+ * which completes them.
+ *
+ * A put waits for the server to acknowledge it, unless the proxy is
+ * pipelined: then puts return once written, and flush waits until the server
+ * has done all of them. The server carries out the commands of a connection
+ * in order, so gets and reads through the same proxy see its earlier puts
+ * either way.
+ *
+ * Cancelling the future of a get or read withdraws the request from the
+ * server, as cancelling a waiter of a LocalTupleSpace does. If the server has
+ * taken a tuple for a cancelled get already, the tuple is put back.
  *
  * Tuple space assignment must be completed and in class path for this to work.
  */
-public class TupleProxy extends LocalTupleSpace implements Runnable {
+public class TupleProxy implements AsyncTupleSpace, Runnable {
 	private long inid, outid;
+	/* Gets, reads and their bulk variants not answered yet, by id. */
+	private final ConcurrentHashMap<Long, Fetch> answers =
+			new ConcurrentHashMap<Long, Fetch>();
+	/* Gets and reads cancelled, until the server answers them anyway. */
+	private final ConcurrentHashMap<Long, Fetch> withdrawn =
+			new ConcurrentHashMap<Long, Fetch>();
+	private final ConcurrentHashMap<Long, CompletableFuture<String[][]>> bulk =
+			new ConcurrentHashMap<Long, CompletableFuture<String[][]>>();
+	/* Puts and putAlls acknowledged; the server does them in order. */
+	private long acked;
+	private final Object acks = new Object();
+	private volatile boolean closed;
+	private volatile boolean pipelined;
 
-	public static String ACK = "ACK";
-	public static String ANSWER = "ANSWER";
 	private TupleSocket socket;
 
 	public TupleProxy(String host, int port) {
-		super();
+		this(host, port, TupleSocket.VERSION);
+	}
+
+	/* Speak the given version of the TupleSocket format, 1 for old servers. */
+	public TupleProxy(String host, int port, int version) {
+		Socket s;
 		try {
-			socket = new TupleSocket(new Socket(host, port));
+			s = new Socket(host, port);
 		} catch (Exception e) {
 			throw new RuntimeException("Invalid host", e);
 		}
+		socket = new TupleSocket(s, version);
 
 		Thread t = new Thread(this);
 		t.setDaemon(true);
@@ -31,8 +64,11 @@ public class TupleProxy extends LocalTupleSpace implements Runnable {
 	}
 
 	public TupleProxy(Socket s) {
-		super();
-		socket = new TupleSocket(s);
+		this(s, TupleSocket.VERSION);
+	}
+
+	public TupleProxy(Socket s, int version) {
+		socket = new TupleSocket(s, version);
 
 		Thread t = new Thread(this);
 		t.setDaemon(true);
@@ -40,41 +76,176 @@ public class TupleProxy extends LocalTupleSpace implements Runnable {
 	}
 
 	public void run() {
-		/* Read incoming messages and put them in tuple space. */
-		while (true) {
-			char t;
-			long id;
-			String[] tuple;
+		/* Read answers and complete the requests waiting for them. */
+		try {
+			while (true) {
+				char t = socket.readCommand();
+				long id = socket.readId();
+
+				if (t == 'R' || t == 'T') {
+					deliver(id, socket.readTuple());
+				} else if (t == 'N') {
+					deliver(id, null);
+				} else if (t == 'M') {
+					String[][] tuples = new String[socket.readInt()][];
+					for (int j = 0; j < tuples.length; j++)
+						tuples[j] = socket.readTuple();
+					bulk.remove(id).complete(tuples);
+				} else if (t == 'A') {
+					synchronized (acks) {
+						acked = Math.max(acked, id + 1);
+						acks.notifyAll();
+					}
+				} else
+					throw new RuntimeException("Unknown command: " + t);
+			}
+		} catch (IOException ioe) {
+		}
 
+		synchronized (acks) {
+			closed = true;
+			acks.notifyAll();
+		}
+		fail(answers);
+		fail(bulk);
+		withdrawn.clear();
+	}
+
+	/*
+	 Completes the get or read with the given id. If it has been cancelled
+	 meanwhile, a tuple taken for it is put back.
+	 */
+	private void deliver(long id, String[] tuple) {
+		Fetch f = answers.remove(id);
+		if (f == null)
+			f = withdrawn.remove(id);
+		if (f != null && !f.complete(tuple) && tuple != null && !f.isRead)
+			putBack(tuple);
+	}
+
+	/* A put that is not waited for, as this may be the reading thread. */
+	private void putBack(String[] tuple) {
+		synchronized (this) {
 			try {
-				t = socket.readCommand();
-				id = socket.readId();
+				socket.writeCommand('P', outid++);
+				socket.writeTuple(tuple);
+				socket.flush();
 			} catch (IOException ioe) {
-				break;
 			}
+		}
+	}
+
+	/*
+	 Called when a get or read is cancelled. Unless its answer is being
+	 delivered already, the server is told to withdraw it; it answers
+	 with 'N', or with the tuple if it found one first.
+	 */
+	private void withdraw(Fetch f) {
+		withdrawn.put(f.id, f);
+		if (!answers.remove(f.id, f)) {
+			withdrawn.remove(f.id);
+			return;
+		}
+		synchronized (this) {
+			try {
+				socket.writeCommand('C', f.id);
+				socket.flush();
+			} catch (IOException ioe) {
+				/* The connection is lost; nothing is left to withdraw. */
+			}
+		}
+	}
+
+	/*
+	 The future of a get or read. Like a waiter of a LocalTupleSpace, it can
+	 only be cancelled while no tuple has been delivered to it.
+	 */
+	private class Fetch extends CompletableFuture<String[]> {
+		final long id;
+		final boolean isRead;
+
+		Fetch(long id, boolean isRead) {
+			this.id = id;
+			this.isRead = isRead;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning))
+				return false;
+			withdraw(this);
+			return true;
+		}
+	}
 
-			if (t == 'R') {
-				String[] read;
+	/* Fails the requests left once the connection is gone. */
+	private <F extends CompletableFuture<?>> void fail(Map<Long, F> requests) {
+		for (Long id : requests.keySet()) {
+			F f = requests.remove(id);
+			if (f != null)
+				f.completeExceptionally(new RuntimeException(
+						"Connection to server lost"));
+		}
+	}
+
+	/*
+	 Registers a request before it is written, so that its answer finds it.
+	 If the connection is gone already, the request fails at once.
+	 */
+	private <T> CompletableFuture<T> register(
+			Map<Long, CompletableFuture<T>> requests, long id) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		requests.put(id, f);
+		if (closed)
+			fail(requests);
+		return f;
+	}
+
+	private Fetch register(Fetch f) {
+		answers.put(f.id, f);
+		if (closed)
+			fail(answers);
+		return f;
+	}
+
+	/*
+	 When pipelined, puts do not wait for the server to acknowledge them;
+	 call flush to wait for that.
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/* Wait until the server has done every put written so far. */
+	public void flush() {
+		long id;
 
+		synchronized (this) {
+			id = outid - 1;
+		}
+		awaitAck(id);
+	}
+
+	private void awaitAck(long id) {
+		boolean interrupted = false;
+
+		synchronized (acks) {
+			while (acked <= id) {
+				if (closed)
+					throw new RuntimeException("Connection to server lost");
 				try {
-					read = socket.readTuple();
-				} catch (IOException ioe) {
-					break;
+					acks.wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
 				}
-				tuple = new String[read.length + 2];
-				tuple[0] = ANSWER;
-				tuple[1] = String.valueOf(id);
-				for (int i = 0; i < read.length; i++)
-					tuple[i + 2] = read[i];
-				super.put(tuple);
-			} else if (t == 'A') {
-				tuple = new String[2];
-				tuple[0] = ACK;
-				tuple[1] = String.valueOf(id);
-				super.put(tuple);
-			} else
-				throw new RuntimeException("Unknown command: " + t);
+			}
 		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	public void put(String... tuple) {
@@ -91,7 +262,55 @@ public class TupleProxy extends LocalTupleSpace implements Runnable {
 			}
 		}
 
-		super.get(ACK, String.valueOf(id));
+		if (!pipelined)
+			awaitAck(id);
+	}
+
+	public void put(long ttl, String... tuple) {
+		long id;
+
+		synchronized (this) {
+			id = outid++;
+			try {
+				socket.writeCommand('L', id);
+				socket.writeLong(ttl);
+				socket.writeTuple(tuple);
+				socket.flush();
+			} catch (IOException ioe) {
+				throw new RuntimeException("IO error in put", ioe);
+			}
+		}
+
+		if (!pipelined)
+			awaitAck(id);
+	}
+
+	public void putAll(String[]... tuples) {
+		long id;
+
+		synchronized (this) {
+			id = outid++;
+			try {
+				socket.writeCommand('B', id);
+				socket.writeInt(tuples.length);
+				for (String[] tuple : tuples)
+					socket.writeTuple(tuple);
+				socket.flush();
+			} catch (IOException ioe) {
+				throw new RuntimeException("IO error in putAll", ioe);
+			}
+		}
+
+		if (!pipelined)
+			awaitAck(id);
+	}
+
+	public String[][] getAll(int max, String... pattern) {
+		return fetchAll(pattern, max, false);
+	}
+
+	public String[][] readAll(String... pattern) {
+		return fetchAll(pattern, Integer.MAX_VALUE, true);
 	}
 
 	public String[] read(String... pattern) {
@@ -102,28 +321,154 @@ public class TupleProxy extends LocalTupleSpace implements Runnable {
 		return fetch(pattern, false);
 	}
 
+	public String[] tryRead(String... pattern) {
+		return fetch(pattern, true, 0);
+	}
+
+	public String[] tryGet(String... pattern) {
+		return fetch(pattern, false, 0);
+	}
+
+	public String[] read(long timeout, String... pattern) {
+		return fetch(pattern, true, Math.max(timeout, 0));
+	}
+
+	public String[] get(long timeout, String... pattern) {
+		return fetch(pattern, false, Math.max(timeout, 0));
+	}
+
+	public CompletableFuture<String[]> readAsync(String... pattern) {
+		return fetchAsync(pattern, true);
+	}
+
+	public CompletableFuture<String[]> getAsync(String... pattern) {
+		return fetchAsync(pattern, false);
+	}
+
+	public CompletableFuture<String[]> readAsync(long timeout,
+			String... pattern) {
+		return fetchAsync(pattern, true, Math.max(timeout, 0));
+	}
+
+	public CompletableFuture<String[]> getAsync(long timeout,
+			String... pattern) {
+		return fetchAsync(pattern, false, Math.max(timeout, 0));
+	}
+
+	/*
+	 Like the get and read of LocalTupleSpace, an untimed fetch waits on
+	 through interrupts and sets the interrupt status again when done.
+	 */
 	public String[] fetch(String[] pattern, boolean isRead) {
-		long id;
+		CompletableFuture<String[]> f = fetchAsync(pattern, isRead);
+		boolean interrupted = false;
+
+		try {
+			while (true) {
+				try {
+					return await(f);
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 A timed fetch returns null when the calling thread is interrupted; the
+	 request is withdrawn then, unless its tuple has arrived already.
+	 */
+	public String[] fetch(String[] pattern, boolean isRead, long timeout) {
+		CompletableFuture<String[]> f = fetchAsync(pattern, isRead, timeout);
+
+		try {
+			return await(f);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			if (f.cancel(false))
+				return null;
+			return f.join();
+		}
+	}
+
+	private static String[] await(CompletableFuture<String[]> f)
+			throws InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public CompletableFuture<String[]> fetchAsync(String[] pattern,
+			boolean isRead) {
+		CompletableFuture<String[]> f;
 
 		synchronized (this) {
-			id = inid++;
+			long id = inid++;
+			f = register(new Fetch(id, isRead));
 			try {
 				socket.writeCommand(isRead ? 'R' : 'G', id);
 				socket.writeTuple(pattern);
 				socket.flush();
 			} catch (IOException ioe) {
-				throw new RuntimeException("IO error in put", ioe);
+				answers.remove(id);
+				throw new RuntimeException("IO error in fetch", ioe);
+			}
+		}
+
+		return f;
+	}
+
+	/*
+	 Timed fetch; the server does the waiting and answers with null if no
+	 tuple was found in time.
+	 */
+	public CompletableFuture<String[]> fetchAsync(String[] pattern,
+			boolean isRead, long timeout) {
+		CompletableFuture<String[]> f;
+
+		synchronized (this) {
+			long id = inid++;
+			f = register(new Fetch(id, isRead));
+			try {
+				socket.writeCommand(isRead ? 'r' : 'g', id);
+				socket.writeLong(timeout);
+				socket.writeTuple(pattern);
+				socket.flush();
+			} catch (IOException ioe) {
+				answers.remove(id);
+				throw new RuntimeException("IO error in fetch", ioe);
 			}
 		}
 
-		pattern = new String[2 + pattern.length];
-		pattern[0] = ANSWER;
-		pattern[1] = String.valueOf(id);
+		return f;
+	}
+
+	public String[][] fetchAll(String[] pattern, int max, boolean isRead) {
+		CompletableFuture<String[][]> f;
+
+		synchronized (this) {
+			long id = inid++;
+			f = register(bulk, id);
+			try {
+				socket.writeCommand(isRead ? 'S' : 'D', id);
+				if (!isRead)
+					socket.writeInt(max);
+				socket.writeTuple(pattern);
+				socket.flush();
+			} catch (IOException ioe) {
+				bulk.remove(id);
+				throw new RuntimeException("IO error in fetchAll", ioe);
+			}
+		}
 
-		String[] result = super.get(pattern);
-		String[] real = new String[result.length - 2];
-		for (int i = 0; i < real.length; i++)
-			real[i] = result[i + 2];
-		return real;
+		return f.join();
 	}
 }
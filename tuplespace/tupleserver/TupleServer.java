@@ -3,6 +3,16 @@ package tupleserver;
 import tuplespaces.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /*
  Extends a LocalTupleSpace to allow network access from TupleProxies via
@@ -12,106 +22,346 @@ import java.net.*;
  to it via TCP (on _all_ network interfaces; this class blatantly neglects
  security). The listening port is printed to standard output.
 
+ Gets and reads do not tie up a thread while waiting; they are answered when
+ their tuple is put. The answers are written by a bounded pool of threads
+ (or, with -threads 0, by the thread that completes the wait) so that a slow
+ client does not hold up the putter. Options:
+   -threads n   threads writing answers (default 4, 0 for none)
+   -queue n     answers queued for the pool before the completing thread
+                writes them itself (default 10000)
+   -stats s     print ServerStats to standard error every s seconds
+   -nio n       serve all connections with n selector threads (see
+                SelectorServer) rather than a thread per connection
+   -journal d   keep the space in directory d (see WriteAheadLog),
+                recovering what it holds at start
+   -fsync p     when the journal forces its writes to disk: always (puts
+                are acknowledged once durable), interval (default) or never
+
  Tuple space assignment must be completed and in class path for this to work.
 
- Tuple server never terminates normally.
+ Tuple server never terminates normally; close stops one that is embedded
+ in another program.
  */
 public class TupleServer extends LocalTupleSpace {
 	public static String ACK = "ACK";
 	public static String ANSWER = "ANSWER";
-	private ServerSocket ssocket;
+	public static final int THREADS = 4, QUEUE = 10000;
+	private ServerSocketChannel ssocket;
+	private volatile boolean closed;
+	/* The connections served by a thread each, or the selector server. */
+	private final Set<Listener> listeners = Collections
+			.newSetFromMap(new ConcurrentHashMap<Listener, Boolean>());
+	private volatile SelectorServer selectors;
+	final Executor answers;
+	private final ServerStats stats;
+	private WriteAheadLog log;
 
 	public TupleServer() {
+		this(pool(THREADS, QUEUE));
+	}
+
+	/*
+	 Create a server whose answers to gets and reads are written by the given
+	 executor, or by the thread completing the wait if it is null.
+	 */
+	public TupleServer(Executor answers) {
+		this.answers = answers;
+		stats = new ServerStats(answers instanceof ThreadPoolExecutor
+				? (ThreadPoolExecutor) answers : null);
 		try {
-			ssocket = new ServerSocket(0);
+			ssocket = ServerSocketChannel.open();
+			ssocket.bind(new InetSocketAddress(0));
 		} catch (IOException ioe) {
 			throw new RuntimeException("Server socket failure", ioe);
 		}
 	}
 
+	/*
+	 A pool of at most the given number of daemon threads, which are stopped
+	 when idle. When queue answers are waiting, the thread completing the
+	 wait writes the answer itself, slowing down the putter.
+	 */
+	public static ThreadPoolExecutor pool(int threads, int queue) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TupleServer answer");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/*
+	 Recover the space from the log in dir and log every change from now on.
+	 Call this before serving any client.
+	 */
+	public void openJournal(File dir, WriteAheadLog.Sync sync) {
+		log = new WriteAheadLog(dir, sync);
+		log.recover(this);
+	}
+
+	public ServerStats getStats() {
+		return stats;
+	}
+
 	public int getPort() {
-		return ssocket.getLocalPort();
+		return ssocket.socket().getLocalPort();
 	}
 
 	public static void main(String[] args) {
-		TupleServer ts = new TupleServer();
+		int threads = THREADS, queue = QUEUE, statSeconds = 0, io = 0;
+		String journal = null;
+		WriteAheadLog.Sync sync = WriteAheadLog.Sync.INTERVAL;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-threads"))
+				threads = Integer.parseInt(value);
+			else if (args[i].equals("-queue"))
+				queue = Integer.parseInt(value);
+			else if (args[i].equals("-stats"))
+				statSeconds = Integer.parseInt(value);
+			else if (args[i].equals("-nio"))
+				io = Integer.parseInt(value);
+			else if (args[i].equals("-journal"))
+				journal = value;
+			else if (args[i].equals("-fsync"))
+				sync = WriteAheadLog.Sync.valueOf(value.toUpperCase());
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		final TupleServer ts = new TupleServer(threads > 0 ? pool(threads,
+				queue) : null);
+		if (journal != null)
+			ts.openJournal(new File(journal), sync);
 		System.out.println(ts.getPort());
-		ts.execute();
+		if (statSeconds > 0)
+			ts.printStats(statSeconds * 1000L);
+		if (io > 0)
+			ts.execute(io);
+		else
+			ts.execute();
 	}
 
+	private void printStats(final long interval) {
+		Thread t = new Thread("TupleServer stats") {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					System.err.println(stats);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/* Returns null once the server is closed. */
 	public Thread startListener() {
 		try {
-			Listener l = new Listener(ssocket.accept());
+			Listener l = new Listener(ssocket.accept().socket());
+			listeners.add(l);
+			/* Closed meanwhile, after close went through the listeners. */
+			if (closed)
+				l.socket.close();
 			l.start();
 			return l;
 		} catch (IOException ioe) {
+			if (closed)
+				return null;
 			System.exit(1);
 			throw new Error("Java is feeling very broken today.");
 		}
 	}
 
+	/* Serve the clients with a thread per connection until closed. */
 	public void execute() {
-		while (true)
-			startListener();
+		while (startListener() != null)
+			;
+	}
+
+	/*
+	 Serve the clients with the given number of I/O threads instead of a
+	 thread per connection.
+	 */
+	public void execute(int ioThreads) {
+		selectors = new SelectorServer(this, ioThreads);
+		if (closed)
+			selectors.close();
+		selectors.execute(ssocket);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/*
+	 Stops accepting clients, ends the connections, whose waiting gets and
+	 reads are cancelled, and closes the journal. The space itself stays
+	 usable.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			ssocket.close();
+		} catch (IOException ioe) {
+		}
+		for (Listener l : listeners)
+			l.socket.close();
+		SelectorServer s = selectors;
+		if (s != null)
+			s.close();
+		if (log != null)
+			log.close();
+	}
+
+	/*
+	 Carries out a request read from a connection and answers it there. Gets
+	 and reads are answered when their future completes; nothing blocks.
+	 */
+	void dispatch(Request r, Connection c) {
+		switch (r.command) {
+		case 'G':
+			c.answer(r.id, false, super.getAsync(r.tuple));
+			break;
+		case 'R':
+			c.answer(r.id, false, super.readAsync(r.tuple));
+			break;
+		case 'g':
+			c.answer(r.id, true, super.getAsync(r.timeout, r.tuple));
+			break;
+		case 'r':
+			c.answer(r.id, true, super.readAsync(r.timeout, r.tuple));
+			break;
+		case 'P':
+			super.put(r.tuple);
+			acknowledge(r.id, c);
+			break;
+		case 'L':
+			super.put(r.timeout, r.tuple);
+			acknowledge(r.id, c);
+			break;
+		case 'B':
+			super.putAll(r.tuples);
+			acknowledge(r.id, c);
+			break;
+		case 'D':
+			c.writeAll(r.id, super.getAll(r.max, r.tuple));
+			break;
+		case 'S':
+			c.writeAll(r.id, super.readAll(r.tuple));
+			break;
+		case 'C':
+			c.withdraw(r.id);
+			break;
+		default:
+			throw new RuntimeException("Unknown command");
+		}
+	}
+
+	/*
+	 Acknowledges a put, once it is durable if the journal forces every
+	 write. A put handed straight to a waiting get leaves no record, so its
+	 commit is done at once, and a commit may be done before the ones ahead
+	 of it have run their actions; each acknowledgement therefore waits for
+	 the one before it on the connection, which keeps them in order.
+	 */
+	private void acknowledge(final long id, final Connection c) {
+		if (log == null) {
+			c.write('A', id, null);
+			return;
+		}
+		CompletableFuture<Void> durable = log.commit();
+		synchronized (c) {
+			if (c.acked.isDone() && durable.isDone()) {
+				c.write('A', id, null);
+				return;
+			}
+			c.acked = CompletableFuture.allOf(c.acked, durable).thenRun(
+					new Runnable() {
+						public void run() {
+							c.write('A', id, null);
+						}
+					});
+		}
 	}
 
 	public class Listener extends Thread {
-		private TupleSocket socket;
+		private final TupleSocket socket;
+		private final Connection connection;
 
 		Listener(Socket s) {
 			socket = new TupleSocket(s);
-		}
+			connection = new Connection(TupleServer.this) {
+				void write(char c, long id, String[] tuple) {
+					synchronized (this) {
+						try {
+							socket.writeCommand(c, id);
+							if (tuple != null)
+								socket.writeTuple(tuple);
+							socket.flush();
+						} catch (IOException ioe) {
+						}
+					}
+				}
 
-		public void run() {
-			while (true) {
-				try {
-					char c = socket.readCommand();
-					long id = socket.readId();
-					String[] tuple = socket.readTuple();
-					if (c == 'G')
-						new Waiter(tuple, id, false).start();
-					else if (c == 'R')
-						new Waiter(tuple, id, true).start();
-					else if (c == 'P') {
-						TupleServer.super.put(tuple);
-						synchronized (this) {
-							socket.writeCommand('A', id);
+				void writeAll(long id, String[][] tuples) {
+					synchronized (this) {
+						try {
+							socket.writeCommand('M', id);
+							socket.writeInt(tuples.length);
+							for (String[] tuple : tuples)
+								socket.writeTuple(tuple);
 							socket.flush();
+						} catch (IOException ioe) {
 						}
-					} else
-						throw new RuntimeException("Unknown command");
-				} catch (IOException ioe) {
-					break;
+					}
 				}
-			}
+			};
 		}
 
-		class Waiter extends Thread {
-			String[] pattern;
-			long id;
-			boolean isRead;
-
-			Waiter(String[] t, long i, boolean ir) {
-				pattern = t;
-				id = i;
-				isRead = ir;
+		/*
+		 Serves the connection until it is lost or sends garbled input,
+		 which ends it as SelectorServer does.
+		 */
+		public void run() {
+			try {
+				socket.accept();
+				while (true)
+					dispatch(read(), connection);
+			} catch (IOException ioe) {
+			} catch (RuntimeException re) {
+				/* Garbled input; the client is not to be trusted any more. */
+			} finally {
+				socket.close();
+				connection.closed();
+				listeners.remove(this);
 			}
+		}
 
-			public void run() {
-				String[] tuple;
-				if (isRead)
-					tuple = TupleServer.super.read(pattern);
-				else
-					tuple = TupleServer.super.get(pattern);
-				synchronized (Listener.this) {
-					try {
-						socket.writeCommand('R', id);
-						socket.writeTuple(tuple);
-						socket.flush();
-					} catch (IOException ioe) {
-					}
-				}
-			}
+		private Request read() throws IOException {
+			Request r = new Request();
+			r.command = socket.readCommand();
+			r.id = socket.readId();
+			if (r.command == 'g' || r.command == 'r' || r.command == 'L')
+				r.timeout = socket.readLong();
+			else if (r.command == 'D')
+				r.max = socket.readInt();
+			if (r.command == 'B') {
+				r.tuples = new String[socket.readInt()][];
+				for (int i = 0; i < r.tuples.length; i++)
+					r.tuples[i] = socket.readTuple();
+			} else if (r.command != 'C')
+				r.tuple = socket.readTuple();
+			return r;
 		}
 	}
 }
@@ -2,34 +2,138 @@ package tupleserver;
 
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /*
  Socket used to transfer data between TupleServers and TupleProxies.
+
+ Two formats are spoken (see Frames). A client wanting version 2 starts the
+ connection with HELLO and the version; the server answers with the version
+ it will speak, and both switch to it. A version 1 client starts with a
+ command, whose first byte is 0, and is answered in version 1. In version 2
+ a command is collected in a buffer and written as one frame on flush, and
+ read as one frame by readCommand.
  */
 public class TupleSocket {
+	public static final int VERSION = 2;
+	static final int HELLO = 'V';
+	public static final int BUFFER = 4096;
+	/*
+	 The largest frame read, 64MB unless the system property
+	 tupleserver.maxframe gives another byte count. A longer one ends the
+	 connection, so that a bad length does not make the reader allocate it.
+	 */
+	public static final int MAX_FRAME = Integer.getInteger(
+			"tupleserver.maxframe", 64 << 20);
 	Socket socket;
+	BufferedInputStream bin;
 	DataInputStream in;
 	DataOutputStream out;
+	private int version = 1;
+	/* Version 2 frames being written and read. */
+	private ByteBuffer sending, received;
 
+	/* A socket speaking version 1 until accept is called. */
 	public TupleSocket(Socket socket) {
 		this.socket = socket;
 		try {
 			socket.setTcpNoDelay(true);
-			in = new DataInputStream(new BufferedInputStream(
-					socket.getInputStream(), 4096));
+			bin = new BufferedInputStream(socket.getInputStream(), BUFFER);
+			in = new DataInputStream(bin);
 			out = new DataOutputStream(new BufferedOutputStream(
-					socket.getOutputStream(), 4096));
+					socket.getOutputStream(), BUFFER));
 		} catch (Exception e) {
 			throw new RuntimeException("Internal socket error", e);
 		}
 	}
 
+	/*
+	 The client side of a connection, asking the server for the given
+	 version. A server that knows no newer version answers with its own.
+	 */
+	public TupleSocket(Socket socket, int version) {
+		this(socket);
+		if (version < 2)
+			return;
+		try {
+			out.write(HELLO);
+			out.write(Math.min(version, VERSION));
+			out.flush();
+			int agreed = in.read();
+			if (agreed < 1)
+				throw new IOException("No answer to version request");
+			use(agreed);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Internal socket error", ioe);
+		}
+	}
+
+	/*
+	 The server side of the handshake: answers a client asking for a
+	 version and returns the version the connection speaks.
+	 */
+	public int accept() throws IOException {
+		bin.mark(1);
+		if (bin.read() == HELLO) {
+			int wanted = bin.read();
+			if (wanted < 0)
+				throw new EOFException();
+			int agreed = Math.max(1, Math.min(wanted, VERSION));
+			out.write(agreed);
+			out.flush();
+			use(agreed);
+		} else
+			bin.reset();
+		return version;
+	}
+
+	private void use(int version) {
+		this.version = version;
+		if (version >= 2) {
+			sending = ByteBuffer.allocate(BUFFER);
+			received = ByteBuffer.allocate(BUFFER);
+		}
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
 	public void writeCommand(char c, long id) throws IOException {
-		out.writeChar(c);
-		out.writeLong(id);
+		if (version >= 2) {
+			if (sending.position() > 0)
+				endFrame();
+			sending = Frames.ensure(sending, Frames.commandSize(version, id));
+			Frames.putCommand(sending, version, c, id);
+		} else {
+			out.writeChar(c);
+			out.writeLong(id);
+		}
+	}
+
+	public void writeInt(int i) throws IOException {
+		if (version >= 2) {
+			sending = Frames.ensure(sending, Frames.intSize(version, i));
+			Frames.putInt(sending, version, i);
+		} else
+			out.writeInt(i);
+	}
+
+	public void writeLong(long l) throws IOException {
+		if (version >= 2) {
+			sending = Frames.ensure(sending, Frames.longSize(version, l));
+			Frames.putLong(sending, version, l);
+		} else
+			out.writeLong(l);
 	}
 
 	public void writeTuple(String[] tuple) throws IOException {
+		if (version >= 2) {
+			sending = Frames.ensure(sending, Frames.tupleSize(version, tuple));
+			Frames.putTuple(sending, version, tuple);
+			return;
+		}
 		out.writeInt(tuple.length);
 		for (int i = 0; i < tuple.length; i++) {
 			if (tuple[i] == null)
@@ -41,19 +145,98 @@ public class TupleSocket {
 		}
 	}
 
+	private void endFrame() throws IOException {
+		long length = sending.position();
+		while ((length & ~0x7fL) != 0) {
+			out.write((int) (length & 0x7f | 0x80));
+			length >>>= 7;
+		}
+		out.write((int) length);
+		out.write(sending.array(), 0, sending.position());
+		sending.clear();
+		sending = Frames.shrink(sending, BUFFER, 16 * BUFFER);
+	}
+
 	public void flush() throws IOException {
+		if (version >= 2 && sending.position() > 0)
+			endFrame();
 		out.flush();
 	}
 
+	/* Closes the connection; writes from now on fail. */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+		}
+	}
+
 	public char readCommand() throws IOException {
-		return in.readChar();
+		if (version < 2)
+			return in.readChar();
+		long length = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			length |= (long) (b & 0x7f) << shift;
+			if (b < 0x80)
+				break;
+			if (shift > 28)
+				throw new IOException("Frame too long");
+		}
+		if (length > MAX_FRAME)
+			throw new IOException("Frame too long: " + length);
+		received.clear();
+		received = Frames.shrink(received, BUFFER, 16 * BUFFER);
+		/* The buffer grows with the bytes that arrive, not with the length. */
+		int size = (int) length;
+		while (received.position() < size) {
+			if (!received.hasRemaining())
+				received = Frames.ensure(received, received.capacity());
+			int n = Math.min(received.remaining(), size - received.position());
+			in.readFully(received.array(), received.position(), n);
+			received.position(received.position() + n);
+		}
+		received.flip();
+		try {
+			return Frames.getCommand(received, version);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated frame");
+		}
 	}
 
 	public long readId() throws IOException {
-		return in.readLong();
+		return readLong();
+	}
+
+	public int readInt() throws IOException {
+		if (version < 2)
+			return in.readInt();
+		try {
+			return Frames.getInt(received, version);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated frame");
+		}
+	}
+
+	public long readLong() throws IOException {
+		if (version < 2)
+			return in.readLong();
+		try {
+			return Frames.getLong(received, version);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated frame");
+		}
 	}
 
 	public String[] readTuple() throws IOException {
+		if (version >= 2) {
+			try {
+				return Frames.getTuple(received, version);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated frame");
+			}
+		}
+
 		int length = in.readInt();
 		String[] tuple = new String[length];
 
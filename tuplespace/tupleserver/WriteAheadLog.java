@@ -0,0 +1,494 @@
+package tupleserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import tuplespaces.Journal;
+import tuplespaces.LocalTupleSpace;
+
+/*
+ Durable log of the tuples a LocalTupleSpace stores and removes, kept in a
+ directory of two kinds of files:
+   log.n      the nth segment of the log, a record per change
+   snapshot   the space as of the end of the segment it names
+
+ The threads of the space append records to a buffer, which one thread, the
+ committer, writes out, everything that has gathered at once (group commit).
+ How often it forces them to disk is the Sync policy:
+   ALWAYS     after every write; commit() returns a future completed then,
+              so that a put can be acknowledged once it is durable
+   INTERVAL   every interval milliseconds; a crash loses at most that much
+   NEVER      never, leaving it to the operating system
+ Once a segment has grown beyond segmentSize bytes, the committer starts the
+ next one and a compactor thread folds the snapshot and the finished
+ segments into a new snapshot. It replaces the old one by renaming, and then
+ the folded segments are deleted. The live space is not involved.
+
+ A record is its length as a varint, a CRC32 of the rest and the change: 'P'
+ for a stored tuple, 'L' and the time it expires for one that expires, 'X'
+ for a removed one, followed by the tuple as in version 2 of the TupleSocket
+ format (see Frames). A record whose CRC does not match, such as one torn by
+ a crash, ends its segment.
+
+ recover streams the snapshot into a fresh space and replays the segments
+ after it. A snapshot holds the difference from a fresh space, so besides
+ the tuples stored it has removals of the tuples a fresh space starts with.
+ A removal applies to any equal tuple. Tuples that have expired by the time
+ they are replayed are not put, but a removal (which follows when the tuple
+ expired in the live space) goes to them first, so that it does not take an
+ equal tuple that is still there.
+ */
+public class WriteAheadLog implements Journal {
+	public enum Sync {
+		ALWAYS, INTERVAL, NEVER
+	}
+
+	public static final long INTERVAL = 100, SEGMENT = 64 << 20;
+	/* How long expired tuples are kept in a snapshot for their removal. */
+	public static final long GRACE = 60000;
+	static final int BUFFER = 65536, MAGIC = 0x54534e50;
+	private static final CompletableFuture<Void> DONE = CompletableFuture
+			.completedFuture(null);
+
+	private final File dir;
+	private final Sync sync;
+	private final long interval, segmentSize;
+	/* Guarded by this. */
+	private ByteBuffer pending = ByteBuffer.allocate(BUFFER);
+	private final ArrayDeque<Commit> commits = new ArrayDeque<Commit>();
+	private long appended, durable;
+	private boolean closed;
+	/* Only used by the committer. */
+	private FileChannel channel;
+	private int segment;
+	private long written;
+	private final CRC32 crc = new CRC32();
+	private Thread committer, compactor;
+
+	private static class Commit {
+		final long upTo;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		Commit(long upTo) {
+			this.upTo = upTo;
+		}
+	}
+
+	public WriteAheadLog(File dir, Sync sync) {
+		this(dir, sync, INTERVAL, SEGMENT);
+	}
+
+	public WriteAheadLog(File dir, Sync sync, long interval, long segmentSize) {
+		if (interval < 1 || segmentSize < 1)
+			throw new IllegalArgumentException("Invalid log parameters");
+		this.dir = dir;
+		this.sync = sync;
+		this.interval = interval;
+		this.segmentSize = segmentSize;
+	}
+
+	/*
+	 Puts what the directory holds into a fresh space, then logs the changes
+	 of the space from now on.
+	 */
+	public void recover(LocalTupleSpace space) {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			new File(dir, "snapshot.tmp").delete();
+			int covers = -1;
+			Map<List<String>, Integer> expired =
+					new HashMap<List<String>, Integer>();
+			File snapshot = new File(dir, "snapshot");
+			if (snapshot.exists()) {
+				DataInputStream in = open(snapshot);
+				try {
+					if (in.readInt() != MAGIC)
+						throw new IOException("Not a snapshot");
+					covers = in.readInt();
+					replay(in, space, expired);
+				} finally {
+					in.close();
+				}
+			}
+			TreeMap<Integer, File> segments = segments();
+			for (Map.Entry<Integer, File> e : segments.entrySet()) {
+				if (e.getKey() <= covers)
+					continue;
+				DataInputStream in = open(e.getValue());
+				try {
+					replay(in, space, expired);
+				} finally {
+					in.close();
+				}
+			}
+			segment = segments.isEmpty() ? covers + 1 : Math.max(covers,
+					segments.lastKey()) + 1;
+			channel = FileChannel.open(new File(dir, "log." + segment)
+					.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Cannot recover from " + dir, ioe);
+		}
+		space.setJournal(this);
+		committer = new Thread("TupleServer log") {
+			public void run() {
+				writeOut();
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	private TreeMap<Integer, File> segments() {
+		TreeMap<Integer, File> segments = new TreeMap<Integer, File>();
+		File[] files = dir.listFiles();
+		for (File f : files == null ? new File[0] : files) {
+			if (f.getName().matches("log\\.\\d+"))
+				segments.put(Integer.valueOf(f.getName().substring(4)), f);
+		}
+		return segments;
+	}
+
+	private static DataInputStream open(File f) throws IOException {
+		return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f), BUFFER));
+	}
+
+	private static void replay(DataInputStream in, LocalTupleSpace space,
+			Map<List<String>, Integer> expired) throws IOException {
+		long now = System.currentTimeMillis();
+		ByteBuffer r;
+		while ((r = readRecord(in)) != null) {
+			char c = Frames.getCommand(r, 2);
+			long expires = (c == 'L') ? Frames.getLong(r, 2) : 0;
+			String[] tuple = Frames.getTuple(r, 2);
+			List<String> key = Arrays.asList(tuple);
+			if (c == 'P')
+				space.put(tuple);
+			else if (c == 'L' && expires > now)
+				space.put(expires - now, tuple);
+			else if (c == 'L')
+				expired.put(key, count(expired, key) + 1);
+			else if (count(expired, key) > 0)
+				expired.put(key, count(expired, key) - 1);
+			else
+				space.tryGet(tuple);
+		}
+	}
+
+	private static int count(Map<List<String>, Integer> m, List<String> key) {
+		Integer n = m.get(key);
+		return n == null ? 0 : n;
+	}
+
+	/* Returns the next record, or null at the end or at a torn record. */
+	private static ByteBuffer readRecord(DataInputStream in) throws IOException {
+		try {
+			long length = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = in.readUnsignedByte();
+				length |= (long) (b & 0x7f) << shift;
+				if (b < 0x80)
+					break;
+				if (shift > 28)
+					return null;
+			}
+			if (length < 4 || length > Integer.MAX_VALUE)
+				return null;
+			int sum = in.readInt();
+			byte[] record = new byte[(int) length - 4];
+			in.readFully(record);
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, record.length);
+			return ((int) crc.getValue() == sum) ? ByteBuffer.wrap(record)
+					: null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/* Appends a record to b, which must have room for it. */
+	private static void putRecord(ByteBuffer b, CRC32 crc, char c,
+			long expires, String[] tuple) {
+		Frames.putVarLong(b, 4 + recordSize(c, expires, tuple));
+		int sum = b.position();
+		b.putInt(0);
+		b.put((byte) c);
+		if (c == 'L')
+			Frames.putLong(b, 2, expires);
+		Frames.putTuple(b, 2, tuple);
+		crc.reset();
+		crc.update(b.array(), b.arrayOffset() + sum + 4, b.position() - sum
+				- 4);
+		b.putInt(sum, (int) crc.getValue());
+	}
+
+	private static int recordSize(char c, long expires, String[] tuple) {
+		return 1 + (c == 'L' ? Frames.longSize(2, expires) : 0)
+				+ Frames.tupleSize(2, tuple);
+	}
+
+	private static int frameSize(char c, long expires, String[] tuple) {
+		int size = 4 + recordSize(c, expires, tuple);
+		return Frames.varSize(size) + size;
+	}
+
+	public void stored(String[] tuple, long expires) {
+		append(expires == 0 ? 'P' : 'L', expires, tuple);
+	}
+
+	public void removed(String[] tuple) {
+		append('X', 0, tuple);
+	}
+
+	private synchronized void append(char c, long expires, String[] tuple) {
+		if (closed)
+			return;
+		int size = frameSize(c, expires, tuple);
+		pending = Frames.ensure(pending, size);
+		putRecord(pending, crc, c, expires, tuple);
+		appended += size;
+		/* The other policies write every interval anyway. */
+		if (sync == Sync.ALWAYS)
+			notifyAll();
+	}
+
+	/*
+	 Returns a future that is completed once the records appended so far
+	 are on disk, or at once unless the policy is ALWAYS.
+	 */
+	public synchronized CompletableFuture<Void> commit() {
+		if (sync != Sync.ALWAYS || durable >= appended)
+			return DONE;
+		Commit c = new Commit(appended);
+		commits.add(c);
+		return c.future;
+	}
+
+	/* The committer: writes out the records until the log is closed. */
+	private void writeOut() {
+		ByteBuffer spare = ByteBuffer.allocate(BUFFER);
+		boolean done = false;
+		while (!done) {
+			ByteBuffer batch;
+			long upTo;
+			synchronized (this) {
+				try {
+					if (sync == Sync.ALWAYS) {
+						while (pending.position() == 0 && !closed)
+							wait();
+					} else if (!closed)
+						wait(interval);
+				} catch (InterruptedException ie) {
+				}
+				done = closed;
+				batch = pending;
+				pending = spare;
+				upTo = appended;
+			}
+			ArrayList<Commit> committed = new ArrayList<Commit>();
+			try {
+				batch.flip();
+				while (batch.hasRemaining())
+					written += channel.write(batch);
+				if (sync != Sync.NEVER || done)
+					channel.force(false);
+				if (written >= segmentSize)
+					rotate();
+				if (done)
+					channel.close();
+			} catch (IOException ioe) {
+				/* Nothing acknowledged from now on would be durable. */
+				ioe.printStackTrace();
+				System.exit(1);
+			}
+			synchronized (this) {
+				durable = upTo;
+				while (!commits.isEmpty() && commits.peek().upTo <= durable)
+					committed.add(commits.poll());
+			}
+			for (Commit c : committed)
+				c.future.complete(null);
+			batch.clear();
+			spare = Frames.shrink(batch, BUFFER, 16 * BUFFER);
+		}
+	}
+
+	/* Starts the next segment and folds the finished ones into a snapshot. */
+	private void rotate() throws IOException {
+		channel.force(true);
+		channel.close();
+		segment++;
+		written = 0;
+		channel = FileChannel.open(new File(dir, "log." + segment).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		if (compactor != null && compactor.isAlive())
+			return;
+		final int upTo = segment - 1;
+		compactor = new Thread("TupleServer snapshot") {
+			public void run() {
+				try {
+					snapshot(upTo);
+				} catch (IOException ioe) {
+					/* The segments are kept; the next rotation tries again. */
+					ioe.printStackTrace();
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/*
+	 The tuples with the same strings, relative to a fresh space: those
+	 stored, by the time they expire (0 for never), and the number of tuples
+	 of a fresh space removed.
+	 */
+	private static class Equal {
+		final ArrayList<Long> expires = new ArrayList<Long>();
+		int removed;
+	}
+
+	/* Writes a snapshot of the state after segment upTo. */
+	void snapshot(int upTo) throws IOException {
+		long now = System.currentTimeMillis();
+		HashMap<List<String>, Equal> state = new HashMap<List<String>, Equal>();
+		int covers = -1;
+		File snapshot = new File(dir, "snapshot");
+		if (snapshot.exists()) {
+			DataInputStream in = open(snapshot);
+			try {
+				if (in.readInt() != MAGIC)
+					throw new IOException("Not a snapshot");
+				covers = in.readInt();
+				fold(in, state, now);
+			} finally {
+				in.close();
+			}
+		}
+		TreeMap<Integer, File> segments = segments();
+		for (Map.Entry<Integer, File> e : segments.entrySet()) {
+			if (e.getKey() <= covers || e.getKey() > upTo)
+				continue;
+			DataInputStream in = open(e.getValue());
+			try {
+				fold(in, state, now);
+			} finally {
+				in.close();
+			}
+		}
+
+		File tmp = new File(dir, "snapshot.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file, BUFFER));
+		out.writeInt(MAGIC);
+		out.writeInt(upTo);
+		ByteBuffer b = ByteBuffer.allocate(BUFFER);
+		CRC32 crc = new CRC32();
+		for (Map.Entry<List<String>, Equal> e : state.entrySet()) {
+			String[] tuple = e.getKey().toArray(new String[0]);
+			Equal eq = e.getValue();
+			/* Removals first, so that they take the tuples of a fresh space. */
+			for (int i = 0; i < eq.removed; i++)
+				b = write(out, b, crc, 'X', 0, tuple);
+			for (long expires : eq.expires) {
+				if (expires == 0)
+					b = write(out, b, crc, 'P', 0, tuple);
+				else if (expires > now - GRACE)
+					b = write(out, b, crc, 'L', expires, tuple);
+			}
+		}
+		out.flush();
+		file.getFD().sync();
+		out.close();
+		Files.move(tmp.toPath(), snapshot.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		for (Map.Entry<Integer, File> e : segments.entrySet()) {
+			if (e.getKey() <= upTo)
+				e.getValue().delete();
+		}
+	}
+
+	private static ByteBuffer write(DataOutputStream out, ByteBuffer b,
+			CRC32 crc, char c, long expires, String[] tuple) throws IOException {
+		b.clear();
+		b = Frames.ensure(b, frameSize(c, expires, tuple));
+		putRecord(b, crc, c, expires, tuple);
+		out.write(b.array(), 0, b.position());
+		return b;
+	}
+
+	private static void fold(DataInputStream in,
+			HashMap<List<String>, Equal> state, long now) throws IOException {
+		ByteBuffer r;
+		while ((r = readRecord(in)) != null) {
+			char c = Frames.getCommand(r, 2);
+			long expires = (c == 'L') ? Frames.getLong(r, 2) : 0;
+			List<String> key = Arrays.asList(Frames.getTuple(r, 2));
+			Equal eq = state.get(key);
+			if (eq == null) {
+				eq = new Equal();
+				state.put(key, eq);
+			}
+			if (c != 'X') {
+				/* Putting back a tuple of a fresh space undoes its removal. */
+				if (expires == 0 && eq.removed > 0)
+					eq.removed--;
+				else
+					eq.expires.add(expires);
+			} else if (!eq.expires.isEmpty())
+				eq.expires.remove(taken(eq.expires, now));
+			else
+				eq.removed++;
+			if (eq.removed == 0 && eq.expires.isEmpty())
+				state.remove(key);
+		}
+	}
+
+	/* Which of equal tuples a removal takes: an expired one if any. */
+	private static int taken(ArrayList<Long> expires, long now) {
+		for (int i = 0; i < expires.size(); i++) {
+			long e = expires.get(i);
+			if (e != 0 && e <= now)
+				return i;
+		}
+		return 0;
+	}
+
+	/*
+	 Writes out and forces what has been appended, and stops logging once a
+	 snapshot being written is done.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (committer == null)
+			return;
+		try {
+			committer.join();
+			if (compactor != null)
+				compactor.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
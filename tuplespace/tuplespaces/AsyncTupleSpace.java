@@ -0,0 +1,18 @@
+package tuplespaces;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Tuple space whose get and read can be waited for without a thread. The
+ * returned future is completed with the tuple once a matching one is put.
+ */
+public interface AsyncTupleSpace extends TupleSpace {
+	public CompletableFuture<String[]> getAsync(String... pattern);
+
+	public CompletableFuture<String[]> readAsync(String... pattern);
+
+	/* Like getAsync and readAsync, but complete with null after timeout. */
+	public CompletableFuture<String[]> getAsync(long timeout, String... pattern);
+
+	public CompletableFuture<String[]> readAsync(long timeout, String... pattern);
+}
@@ -0,0 +1,19 @@
+package tuplespaces;
+
+/*
+ * Told by a LocalTupleSpace about every tuple it stores and removes, see
+ * LocalTupleSpace.setJournal. A tuple handed to a waiting get at once is
+ * never stored, so it is not told. Equal tuples are told in the order their
+ * changes happen; the calls are made while the space holds the monitor of
+ * the tuple's stripe, so they must neither block nor use the space.
+ */
+public interface Journal {
+	/*
+	 * A tuple was stored. It expires at the given time (as returned by
+	 * System.currentTimeMillis), or never if expires is 0.
+	 */
+	public void stored(String[] tuple, long expires);
+
+	/* A tuple equal to the given one was removed, or expired. */
+	public void removed(String[] tuple);
+}
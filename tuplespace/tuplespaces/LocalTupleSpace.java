@@ -1,33 +1,41 @@
 package tuplespaces;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /*
  * Tuple Space implementation. It provides both concurrent efficiency and 
  * searching efficiency. 
  * 
- * For concurrent efficiency, it works this way: when a tuple is put into the 
- * tuple space, only the thread that waits for that tuple is notified, thereby 
- * improving the performance of concurrency. There is a Lock object attached to 
- * each Pattern object. A reference to Lock object means that the Lock object 
- * is currently used by some thread that is waiting. We maintain the number of 
- * references of Lock objects and remove the Lock object if the number becomes 
- * zero.
- * 
- * Note that if read is waked up by some thread it should notify other thread
- * as well because there might be a waiting get/read that wants to have the
- * same tuple that matches its own pattern. That is, a tuple put into the space
- * matches two different waiting patterns.
- * 
- * The reason why we notify other thread after get is that the same lock 
- * might be notified when two tuples are put into the space. For example, a
- * thread A is waiting ("ABC") and thread B is waiting (null) and they should
- * have two different locks. Suppose tuple ("ABC") is put into space two times 
- * it might be possible that the thread A is notified two times.
+ * For concurrent efficiency, it works this way: a get or read that finds no 
+ * matching tuple files a Waiter for its pattern instead of keeping a thread 
+ * busy. A Waiter is a CompletableFuture, which the put of a matching tuple 
+ * completes: every waiting read whose pattern matches the tuple gets it, 
+ * and then the first waiting get takes it away. Thus only the waiters that
+ * can use the tuple are woken up, and getAsync/readAsync cost no thread at
+ * all while waiting. A tuple taken by a waiting get is handed over before 
+ * it is stored, so it never enters the indexes. The blocking get and read 
+ * just wait for their Waiter.
+ * Waiters with the same pattern share one WaitList in arrival order, so 
+ * gets of the same pattern are served first come, first served. In a fair 
+ * space this holds across patterns too: a tuple matching the patterns of 
+ * several gets goes to the one that has waited longest, wherever it is 
+ * filed, instead of the first one found.
  * 
  * For searching (pattern matching) efficiency, the algorithm works this way:
  * For a pattern like [str1, str2, null, str4], there will be 3 candidate 
@@ -40,294 +48,2439 @@ import java.util.Set;
  * candidate sets are empty (in the case of all-null pattern, i.e.
  * [null, null, ..., null]), we return the tuple directly from base.
  * 
- * As we use HashSet to store the tuples in candidate sets, the average 
- * time will be O(N) where N is the number of tuples in minimal candidate set. 
- * Normally the N is quite small comparing to the number of all tuples 
- * stored in the space. The reason why we don't use Tree is that Tree might 
- * not be able to match the pattern that starts from null or has null in 
- * the middle like [null, str2, null, str4].
+ * The indexes do not use the strings themselves but their ids in a symbol
+ * table (Symbols), which every tuple and waiting pattern interns its 
+ * strings in. So a string is hashed once per operation and equal strings 
+ * of different tuples are stored once.
+ * 
+ * As the small candidate sets are hash sets (of slots, see TupleBase), the 
+ * average time will be O(N) where N is the number of tuples in minimal 
+ * candidate set. Normally the N is quite small comparing to the number of 
+ * all tuples stored in the space. When all candidate sets are large, they 
+ * are compressed bitmaps and are and-ed 64 slots at a time instead. The 
+ * reason why we don't use Tree is that Tree might not be able to match the
+ * pattern that starts from null or has null in the middle like [null, str2,
+ * null, str4].
+ * 
+ * Waiting patterns are indexed in the same manner so that a put only checks 
+ * the patterns that could possibly match the new tuple. A pattern is filed 
+ * under one of its non-null items, the one under which the fewest patterns 
+ * are filed at the time, e.g. [null, str2, null, str4] is filed under either 
+ * str2 at position 1 or str4 at position 3 with length 4. Thus the patterns
+ * [str1, "1"], [str1, "2"], ... do not all end up under str1. 
+ * A tuple [s1, s2, s3, s4] can only match 
+ * patterns filed under s1 at 0, s2 at 1, s3 at 2 or s4 at 3 (all of length 4)
+ * and the all-null patterns of length 4. Thus the cost of a put depends on 
+ * the number of waiting patterns sharing an item with the tuple instead of 
+ * the number of all waiting patterns.
+ * 
+ * To let operations on unrelated tuples run in parallel, the tuples are 
+ * spread over several stripes, each of which is a TupleBase with its own 
+ * monitor. A tuple is stored in the stripe chosen by its length and first 
+ * item, so a pattern whose first item is not null only has to search one 
+ * stripe. A pattern starting with null searches the stripes one by one. 
+ * Since a tuple lives in exactly one stripe, search-and-remove stays atomic.
+ * The bulk operations putAll, getAll and readAll hold the monitors of all the
+ * stripes they touch at once, locking them in ascending order.
+ * 
+ * The waiting patterns are split the same way. A pattern whose first item is
+ * not null is filed in the wait index of its stripe, under the monitor of 
+ * the stripe, so that "search, then file a waiter" and "add, then complete 
+ * the waiters" exclude each other. The patterns starting with null share 
+ * one more wait index, waitingAny, whose monitor is always taken before the
+ * monitor of any stripe. Their waiters are filed before the stripes are 
+ * searched. A put holds waitingAny too if it is not empty, so that the reads
+ * of both indexes are served before a get takes the tuple. If it is empty,
+ * the put checks it once more after adding the tuple; so either the put 
+ * sees the waiter or the waiter sees the tuple. Waiters are completed only
+ * after all monitors are released, since completing a CompletableFuture 
+ * runs the actions that depend on it.
+ * 
+ * A space may keep its tuples off the heap (direct storage, see DIRECT), 
+ * for spaces that hold millions of them: the strings of the symbol table 
+ * and the ids of every stored tuple are then kept in direct ByteBuffers 
+ * (see Arena) instead of String and Tuple objects, so that the garbage 
+ * collector has only the int arrays of the indexes left to trace. As the 
+ * matching is done by ids anyway, only the tuple that is returned is 
+ * decoded into strings, under the monitor of its stripe.
+ * 
+ * A Journal may be told about every tuple stored and removed, under the 
+ * monitor of its stripe, so that a server can log them (see setJournal).
+ * 
+ * The stored tuples are counted, together with an estimate of their heap, 
+ * and may be bounded by setCapacity. Room is made for a tuple before it is
+ * put, outside all monitors, so a put that blocks on a full space holds 
+ * none of them (see Capacity).
  */
 
-public class LocalTupleSpace implements TupleSpace {
+public class LocalTupleSpace implements AsyncTupleSpace {
+	
+	// timeout of the blocking get and read
+	private static final long FOREVER = -1;
+	
+	// default number of stripes of the tuple store
+	public static final int STRIPES = 16;
+	
+	// system property that makes spaces use direct storage if "true"
+	public static final String DIRECT = "tuplespaces.direct";
 	
+	// completes the waiters of timed asynchronous operations with null
+	private static ScheduledThreadPoolExecutor timer;
+	
+	// ids of the strings in the stored tuples and waiting patterns
+	private final Symbols symbols;
 	// store all tuples
-	private final TupleBase space;
-	// A map between waiting pattern and corresponding lock
-	private final HashMap<Pattern, Lock> waiting;
+	private final StripedTupleBase space;
+	// Index of waiting patterns that start with null
+	private final WaitIndex waitingAny;
+	// numbers the waiters in arrival order
+	private final AtomicLong arrivals = new AtomicLong();
+	// counts the stored tuples and bounds them, see setCapacity
+	private final Capacity capacity = new Capacity();
+	// leases of the tuples put with a time to live
+	private final Expiry expiry = new Expiry(this);
+	// patterns of the tuples that may be evicted, in the order to try them
+	private final CopyOnWriteArrayList<Pattern> evictable = 
+			new CopyOnWriteArrayList<Pattern>();
+	
+	/*
+	 * What a put does when the space is full: wait until there is room, 
+	 * throw an IllegalStateException, or evict stored tuples that match 
+	 * one of the evictable patterns (and throw if there are none). In any 
+	 * case a tuple that a waiting get takes at once is put.
+	 */
+	public enum WhenFull { BLOCK, REJECT, EVICT }
 	
 	public LocalTupleSpace () {
-		space = new TupleBase();
-		waiting = new HashMap<Pattern, Lock>();
-		space.add(new Tuple("chs", ""));
+		this(STRIPES);
+	}
+	
+	/*
+	 * Create a tuple space whose store is split into the given number of 
+	 * stripes (rounded up to a power of two). One stripe gives a single 
+	 * store monitor shared by all operations.
+	 */
+	public LocalTupleSpace (int stripes) {
+		this(stripes, true);
+	}
+	
+	/*
+	 * Like LocalTupleSpace(stripes), but large index sets are kept as plain 
+	 * hash sets instead of bitmaps if bitmaps is false, so that patterns of 
+	 * several strings are always matched by probing the other candidate 
+	 * sets for every member of the smallest one.
+	 */
+	public LocalTupleSpace (int stripes, boolean bitmaps) {
+		this(stripes, bitmaps, false);
+	}
+	
+	/*
+	 * Create a tuple space that is fair across patterns if fair is true: 
+	 * a tuple is taken by the get that has waited longest among those whose
+	 * pattern matches it, not only among those of the same pattern.
+	 */
+	public LocalTupleSpace (int stripes, boolean bitmaps, boolean fair) {
+		this(stripes, bitmaps, fair, Boolean.getBoolean(DIRECT));
+	}
+	
+	/*
+	 * Create a tuple space that keeps its strings and stored tuples off the
+	 * heap if direct is true. The other constructors choose so by the 
+	 * system property DIRECT.
+	 */
+	public LocalTupleSpace (int stripes, boolean bitmaps, boolean fair, 
+			boolean direct) {
+		symbols = new Symbols(direct);
+		space = new StripedTupleBase(stripes, symbols, bitmaps, fair, 
+				capacity, direct);
+		waitingAny = new WaitIndex(null, symbols, fair);
+		Tuple chs = new Tuple(symbols, new String[] {"chs", ""}, true);
+		capacity.reserve(chs);
+		space.add(chs);
+	}
+	
+	/*
+	 * Bound the space to maxTuples tuples and about maxBytes bytes of heap 
+	 * (see Tuple.bytes), either of which may be Long.MAX_VALUE, and choose
+	 * what a put does when they are reached. A space is unbounded until 
+	 * this is called. Tuples stored already are kept even if they exceed 
+	 * the new bounds.
+	 */
+	public void setCapacity(long maxTuples, long maxBytes, WhenFull whenFull) {
+		if (maxTuples < 1 || maxBytes < 1 || whenFull == null) {
+			throw new IllegalArgumentException("Invalid capacity");
+		}
+		capacity.set(maxTuples, maxBytes, whenFull);
+	}
+	
+	/*
+	 * Let a full space of policy EVICT evict the tuples matching pattern. 
+	 * The patterns are tried in the order they were added.
+	 */
+	public void addEvictable(String... pattern) {
+		evictable.add(new Pattern(pattern));
+	}
+	
+	/*
+	 * Tell the journal about every tuple stored and removed from now on, or
+	 * nobody if journal is null.
+	 */
+	public void setJournal(Journal journal) {
+		for (TupleBase base : space.stripes) {
+			base.journal = journal;
+		}
+	}
+	
+	/* The number of stored tuples. */
+	public long size() {
+		return capacity.tuples.get();
+	}
+	
+	/* The estimated heap taken by the stored tuples, in bytes. */
+	public long bytes() {
+		return capacity.bytes.get();
 	}
 
 	public String[] get(String... pattern) {
+		return await(waitFor(new Pattern(pattern), true), FOREVER);
+	}
+
+	public String[] read(String... pattern) {
+		return await(waitFor(new Pattern(pattern), false), FOREVER);
+	}
+	
+	public String[] tryGet(String... pattern) {
+		Tuple t = space.search(new Pattern(pattern, true), true);
+		return t == null ? null : t.getStrings();
+	}
+	
+	public String[] tryRead(String... pattern) {
+		Tuple t = space.search(new Pattern(pattern, true), false);
+		return t == null ? null : t.getStrings();
+	}
+	
+	public String[] get(long timeout, String... pattern) {
+		Pattern p = new Pattern(pattern);
+		if (timeout <= 0) {
+			Tuple t = space.search(p, true);
+			return t == null ? null : t.getStrings();
+		}
+		return await(waitFor(p, true), timeout);
+	}
+	
+	public String[] read(long timeout, String... pattern) {
 		Pattern p = new Pattern(pattern);
+		if (timeout <= 0) {
+			Tuple t = space.search(p, false);
+			return t == null ? null : t.getStrings();
+		}
+		return await(waitFor(p, false), timeout);
+	}
+	
+	public CompletableFuture<String[]> getAsync(String... pattern) {
+		return waitFor(new Pattern(pattern), true);
+	}
+	
+	public CompletableFuture<String[]> readAsync(String... pattern) {
+		return waitFor(new Pattern(pattern), false);
+	}
+	
+	public CompletableFuture<String[]> getAsync(long timeout, 
+			String... pattern) {
+		return expire(new Pattern(pattern), true, timeout);
+	}
+	
+	public CompletableFuture<String[]> readAsync(long timeout, 
+			String... pattern) {
+		return expire(new Pattern(pattern), false, timeout);
+	}
+
+	/*
+	 * In a bounded space, the room for all the tuples is made at once before
+	 * any is put, so the tuples do not go to waiting gets while the space is
+	 * full, and a blocked putAll holds no room while it waits.
+	 */
+	public void putAll(String[]... tuples) {
+		Tuple[] ts = new Tuple[tuples.length];
+		for (int i = 0; i < ts.length; i++) {
+			ts[i] = new Tuple(symbols, tuples[i]);
+		}
+		ArrayList<Waiter> done = new ArrayList<Waiter>();
+		admitAll(ts);
+		if (waitingAny.size > 0) {
+			synchronized (waitingAny) {
+				space.putAll(ts, done, waitingAny);
+			}
+		} else {
+			space.putAll(ts, done, null);
+			for (Tuple t : ts) {
+				deliverAny(t, done);
+			}
+		}
+		complete(done);
+	}
+	
+	public String[][] getAll(int max, String... pattern) {
+		return strings(space.searchAll(new Pattern(pattern, true), true, 
+				max));
+	}
+	
+	public String[][] readAll(String... pattern) {
+		return strings(space.searchAll(new Pattern(pattern, true), false, 
+				Integer.MAX_VALUE));
+	}
+
+	public void put(String... tuple) {
+		put(new Tuple(symbols, tuple), 0);
+	}
+	
+	/*
+	 * The tuple is removed by the sweeper once its ttl has passed, at most 
+	 * a tick (Expiry.TICK) late, unless it was taken before.
+	 */
+	public void put(long ttl, String... tuple) {
+		Tuple t = new Tuple(symbols, tuple);
+		put(t, System.currentTimeMillis() + ttl);
+		// a tuple taken at once needs no lease; one taken later is skipped
+		if (t.slot != Symbols.NONE) expiry.add(t, ttl);
+	}
+	
+	/*
+	 * Put the tuple, which expires at the given time or never if expires is
+	 * 0 (only told to the journal; the lease is filed by the caller).
+	 */
+	private void put(Tuple t, long expires) {
+		ArrayList<Waiter> done = new ArrayList<Waiter>();
+		if (!admit(t, done)) {
+			complete(done);
+			return;
+		}
+		String[] s = t.getStrings();
+		TupleBase base = space.stripe(s.length, s[0]);
+		if (waitingAny.size > 0) {
+			synchronized (waitingAny) {
+				base.put(t, done, waitingAny, expires);
+			}
+		} else {
+			base.put(t, done, null, expires);
+			deliverAny(t, done);
+		}
+		complete(done);
+	}
+	
+	/*
+	 * Make room for the tuple according to the capacity. If the space is 
+	 * full and done is not null, the tuple is offered to the waiting gets 
+	 * first; false is returned if one took it, which leaves nothing to put.
+	 */
+	private boolean admit(Tuple t, ArrayList<Waiter> done) {
+		if (t.bytes() > capacity.maxBytes) {
+			// would never fit
+			if (done != null) symbols.release(t.ids);
+			throw new IllegalArgumentException("Tuple larger than space");
+		}
+		while (true) {
+			long seen = capacity.changes.get();
+			if (capacity.reserve(t)) return true;
+			if (done != null && offer(t, done)) return false;
+			
+			switch (capacity.whenFull) {
+			case BLOCK:
+				capacity.await(1, t.bytes(), seen);
+				continue;
+			case EVICT:
+				if (evict()) continue;
+				break;
+			case REJECT:
+				break;
+			}
+			// rejected, or nothing to evict
+			if (done != null) symbols.release(t.ids);
+			throw new IllegalStateException("Tuple space is full");
+		}
+	}
+	
+	/*
+	 * Make room for all the tuples in one step, as admit does for one, 
+	 * without offering them to the waiting gets. A batch that could never
+	 * fit is refused at once instead of waiting forever.
+	 */
+	private void admitAll(Tuple[] ts) {
+		long b = 0;
+		for (Tuple t : ts) {
+			b += t.bytes();
+		}
+		try {
+			if (ts.length > capacity.maxTuples || b > capacity.maxBytes) {
+				throw new IllegalArgumentException("Tuples larger than space");
+			}
+			while (true) {
+				long seen = capacity.changes.get();
+				if (capacity.reserve(ts.length, b)) return;
+				
+				switch (capacity.whenFull) {
+				case BLOCK:
+					capacity.await(ts.length, b, seen);
+					continue;
+				case EVICT:
+					if (evict()) continue;
+					break;
+				case REJECT:
+					break;
+				}
+				throw new IllegalStateException("Tuple space is full");
+			}
+		} catch (RuntimeException e) {
+			for (Tuple t : ts) {
+				symbols.release(t.ids);
+			}
+			throw e;
+		}
+	}
+	
+	/*
+	 * Hand a tuple that does not fit to the waiters if a get takes it, see
+	 * TupleBase.offer. Return true if it was taken.
+	 */
+	private boolean offer(Tuple t, ArrayList<Waiter> done) {
+		String[] s = t.getStrings();
+		TupleBase base = space.stripe(s.length, s[0]);
+		if (waitingAny.size > 0) {
+			synchronized (waitingAny) {
+				return base.offer(t, done, waitingAny);
+			}
+		}
+		return base.offer(t, done, null);
+	}
+	
+	/*
+	 * Remove a stored tuple that matches one of the evictable patterns. 
+	 * Return false if there is none.
+	 */
+	private boolean evict() {
+		for (Pattern p : evictable) {
+			if (space.search(p, true) != null) return true;
+		}
+		return false;
+	}
+	
+	private static String[][] strings(ArrayList<Tuple> tuples) {
+		String[][] ret = new String[tuples.size()][];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = tuples.get(i).getStrings();
+		}
+		return ret;
+	}
+	
+	/*
+	 * Search a tuple matching pattern p, removing it if toRemove is true. 
+	 * If there is none, file a waiter for p. The returned waiter is 
+	 * completed with the tuple either way.
+	 */
+	private Waiter waitFor(Pattern p, boolean toRemove) {
+		Waiter w = new Waiter(toRemove);
+		String[] s = p.getStrings();
 		Tuple t;
 		
-		Lock l = newLock(p);
-		synchronized(l){
-			while ((t = space.search(p, true)) == null) {
-				try {
-					l.wait();
-				} catch (InterruptedException e) {
-					System.err.println(e.getMessage());
+		if (s[0] != null) {
+			TupleBase base = space.stripe(s.length, s[0]);
+			synchronized (base) {
+				t = base.search(p, toRemove);
+				if (t == null) {
+					w.arrival = arrivals.incrementAndGet();
+					base.waiting.add(p, w);
+				}
+			}
+		} else {
+			synchronized (waitingAny) {
+				// file the waiter first, see deliverAny
+				w.arrival = arrivals.incrementAndGet();
+				waitingAny.add(p, w);
+				t = space.search(p, toRemove);
+				if (t != null) waitingAny.remove(w);
+			}
+		}
+		
+		if (t != null) {
+			w.complete(t.getStrings());
+		} else if (toRemove) {
+			// a full space may hand a blocked put to this get now
+			capacity.filed();
+		}
+		return w;
+	}
+	
+	/*
+	 * Like waitFor, but complete the waiter with null after timeout 
+	 * milliseconds. A timeout of zero or less only tries once.
+	 */
+	private CompletableFuture<String[]> expire(Pattern p, boolean toRemove, 
+			long timeout) {
+		if (timeout <= 0) {
+			Tuple t = space.search(p, toRemove);
+			return CompletableFuture.completedFuture(
+					t == null ? null : t.getStrings());
+		}
+		
+		final Waiter w = waitFor(p, toRemove);
+		if (w.isDone()) return w;
+		final ScheduledFuture<?> f = timer().schedule(new Runnable() {
+			public void run() {
+				if (w.withdraw()) w.complete(null);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		w.whenComplete(new BiConsumer<String[], Throwable>() {
+			public void accept(String[] t, Throwable e) {
+				f.cancel(false);
+			}
+		});
+		return w;
+	}
+	
+	/*
+	 * Wait until the waiter is completed. If timeout is FOREVER, interrupts 
+	 * are ignored and this never returns null. Otherwise null is returned 
+	 * after timeout milliseconds or when the thread is interrupted, in which
+	 * case the interrupt status is set again.
+	 */
+	private static String[] await(Waiter w, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean interrupted = false;
+		
+		while (!interrupted) {
+			try {
+				if (timeout == FOREVER) return w.get();
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) break;
+				return w.get(left, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				if (timeout == FOREVER) {
+					System.err.println(e.getMessage());
+				} else {
+					interrupted = true;
+				}
+			} catch (TimeoutException e) {
+				break;
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Waiter failed", e.getCause());
+			}
+		}
+		
+		if (interrupted) Thread.currentThread().interrupt();
+		// a tuple may have been handed to the waiter in the meantime
+		if (w.withdraw()) return null;
+		return w.join();
+	}
+	
+	/*
+	 * Hand a tuple that has been put while waitingAny was empty to the 
+	 * waiters filed in waitingAny since, unless the tuple was taken already.
+	 */
+	private void deliverAny(Tuple t, ArrayList<Waiter> done) {
+		if (waitingAny.size == 0) return;
+		
+		String[] s = t.getStrings();
+		TupleBase base = space.stripe(s.length, s[0]);
+		synchronized (waitingAny) {
+			synchronized (base) {
+				if (base.contains(t)) base.deliver(t, done, waitingAny);
+			}
+		}
+	}
+	
+	/*
+	 * Complete the waiters that were handed a tuple. This must be called 
+	 * without holding any monitor.
+	 */
+	private static void complete(ArrayList<Waiter> done) {
+		for (Waiter w : done) {
+			w.complete(w.tuple.getStrings());
+		}
+	}
+	
+	private static synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LocalTupleSpace timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+	
+	
+	/*****************************************************************
+	 * Followings are static nested classes used by LocalTupleSpace. *
+	 ****************************************************************/
+	
+	/*
+	 * The number and estimated bytes of the stored tuples, and their bounds.
+	 * A tuple is counted from the time room is made for it (reserve) until
+	 * it is removed from the store or handed to a get instead of stored 
+	 * (release). Puts that wait for room wait on this monitor, for a release
+	 * or, since a get may take their tuple, for a get to be filed; changes 
+	 * counts both, so that no wakeup between a failed reserve and await is 
+	 * lost.
+	 */
+	private final static class Capacity {
+		
+		final AtomicLong tuples = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong changes = new AtomicLong();
+		volatile long maxTuples = Long.MAX_VALUE, maxBytes = Long.MAX_VALUE;
+		volatile WhenFull whenFull = WhenFull.REJECT;
+		volatile boolean bounded;
+		// number of puts waiting in await
+		volatile int blocked;
+		
+		synchronized void set(long maxTuples, long maxBytes, 
+				WhenFull whenFull) {
+			this.maxTuples = maxTuples;
+			this.maxBytes = maxBytes;
+			this.whenFull = whenFull;
+			bounded = true;
+			changes.incrementAndGet();
+			notifyAll();
+		}
+		
+		/*
+		 * Count the tuple if it fits. Return false otherwise.
+		 */
+		boolean reserve(Tuple t) {
+			return reserve(1, t.bytes());
+		}
+		
+		/*
+		 * Count k tuples of b bytes in all if they all fit. Return false, 
+		 * having counted none of them, otherwise.
+		 */
+		boolean reserve(long k, long b) {
+			long n;
+			do {
+				n = tuples.get();
+				if (n + k > maxTuples) return false;
+			} while (!tuples.compareAndSet(n, n + k));
+			long m;
+			do {
+				m = bytes.get();
+				if (m + b > maxBytes) {
+					release(k, 0);
+					return false;
+				}
+			} while (!bytes.compareAndSet(m, m + b));
+			return true;
+		}
+		
+		void release(Tuple t) {
+			release(1, t.bytes());
+		}
+		
+		private void release(long n, long b) {
+			tuples.addAndGet(-n);
+			bytes.addAndGet(-b);
+			changed();
+		}
+		
+		/* Called when a get is filed as a waiter. */
+		void filed() {
+			if (whenFull == WhenFull.BLOCK) changed();
+		}
+		
+		// only puts of a bounded space wait, so others need not count
+		private void changed() {
+			if (!bounded) return;
+			changes.incrementAndGet();
+			if (blocked > 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+		
+		/*
+		 * Wait until k tuples of b bytes may fit or something changed since 
+		 * seen. Interrupts are ignored, like the blocking get does.
+		 */
+		synchronized void await(long k, long b, long seen) {
+			blocked++;
+			try {
+				while (changes.get() == seen && (tuples.get() + k > maxTuples
+						|| bytes.get() + b > maxBytes)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						System.err.println(e.getMessage());
+					}
+				}
+			} finally {
+				blocked--;
+			}
+		}
+	}
+	
+	/*
+	 * The leases of the tuples put with a time to live, in a hierarchical 
+	 * timing wheel: LEVELS wheels of SLOTS buckets, where a bucket of level 
+	 * l spans SLOTS^l ticks of TICK milliseconds. A lease is filed in the 
+	 * lowest level whose range reaches its deadline and moves down a level 
+	 * whenever the wheel below has turned round, until the bucket of its 
+	 * tick comes up in level 0. Thus adding a lease and expiring it cost 
+	 * O(1), plus a move per level. Leases further away than the top level 
+	 * reaches wait in its last bucket and are filed again from there.
+	 * 
+	 * Tuples taken before their deadline keep their lease; it is dropped 
+	 * when it is due, as the tuple is no longer in the space then. The 
+	 * sweeper runs on the timer of LocalTupleSpace while there are leases
+	 * and is stopped when there are none, so an idle space holds no task. 
+	 * The tuples are removed outside the monitor of this class.
+	 */
+	private final static class Expiry implements Runnable {
+		
+		static final long TICK = 10;
+		static final int BITS = 6, SLOTS = 1 << BITS, LEVELS = 4;
+		
+		final LocalTupleSpace owner;
+		final long origin = System.nanoTime();
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final ArrayList<Lease>[][] wheels = new ArrayList[LEVELS][SLOTS];
+		// the last tick swept
+		long now;
+		int leases;
+		ScheduledFuture<?> sweeper;
+		
+		Expiry(LocalTupleSpace owner) {
+			this.owner = owner;
+		}
+		
+		private long tick() {
+			return (System.nanoTime() - origin) / (TICK * 1000000);
+		}
+		
+		/* Expire the tuple after ttl milliseconds. */
+		synchronized void add(Tuple t, long ttl) {
+			long ticks = (ttl + TICK - 1) / TICK;
+			// an empty wheel may have stood still, start it where time is
+			if (leases == 0) now = tick();
+			file(new Lease(t, tick() + Math.max(ticks, 1)));
+			if (leases++ == 0) {
+				sweeper = timer().scheduleAtFixedRate(this, TICK, TICK, 
+						TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		private void file(Lease l) {
+			long delta = Math.max(l.deadline - now, 0);
+			long at = now + delta;
+			int level = 0;
+			while (level < LEVELS - 1 && delta >= 1L << BITS * (level + 1)) {
+				level++;
+			}
+			if (delta >= 1L << BITS * LEVELS) {
+				// out of reach, wait in the last bucket of the top level
+				at = now + (1L << BITS * LEVELS) - 1;
+			}
+			int slot = (int) (at >>> BITS * level) & (SLOTS - 1);
+			ArrayList<Lease> bucket = wheels[level][slot];
+			if (bucket == null) {
+				bucket = wheels[level][slot] = new ArrayList<Lease>();
+			}
+			bucket.add(l);
+		}
+		
+		/*
+		 * Sweep the ticks that have passed and expire the tuples whose 
+		 * deadline has come.
+		 */
+		public void run() {
+			ArrayList<Tuple> due = new ArrayList<Tuple>();
+			synchronized (this) {
+				long until = tick();
+				while (now < until) {
+					now++;
+					cascade(1);
+					ArrayList<Lease> bucket = take(0, now);
+					if (bucket == null) continue;
+					for (Lease l : bucket) {
+						if (l.deadline <= now) {
+							due.add(l.tuple);
+							leases--;
+						} else {
+							file(l);
+						}
+					}
+				}
+				if (leases == 0 && sweeper != null) {
+					sweeper.cancel(false);
+					sweeper = null;
+				}
+			}
+			for (Tuple t : due) {
+				String[] s = t.getStrings();
+				owner.space.stripe(s.length, s[0]).expire(t);
+			}
+		}
+		
+		/*
+		 * Move the leases of the bucket of level that comes up now down, 
+		 * if the wheel below has just turned round.
+		 */
+		private void cascade(int level) {
+			if (level == LEVELS || (now & (1L << BITS * level) - 1) != 0) {
+				return;
+			}
+			cascade(level + 1);
+			ArrayList<Lease> bucket = take(level, now >>> BITS * level);
+			if (bucket == null) return;
+			for (Lease l : bucket) {
+				file(l);
+			}
+		}
+		
+		private ArrayList<Lease> take(int level, long at) {
+			int slot = (int) at & (SLOTS - 1);
+			ArrayList<Lease> bucket = wheels[level][slot];
+			wheels[level][slot] = null;
+			return bucket;
+		}
+	}
+	
+	private final static class Lease {
+		final Tuple tuple;
+		// the tick after which the tuple is removed
+		final long deadline;
+		
+		Lease(Tuple tuple, long deadline) {
+			this.tuple = tuple;
+			this.deadline = deadline;
+		}
+	}
+	
+	/* 
+	 * A get or read waiting for a tuple. The waiter is completed with the 
+	 * tuple that was handed to it. Until then it is filed in a WaitList;
+	 * list and index may only be changed while holding index.monitor.
+	 */
+	private final static class Waiter extends CompletableFuture<String[]> {
+		final boolean toRemove;
+		// when the waiter was filed, see LocalTupleSpace.arrivals
+		long arrival;
+		WaitIndex index;
+		WaitList list;
+		Tuple tuple;
+		
+		Waiter(boolean toRemove) {
+			this.toRemove = toRemove;
+		}
+		
+		/*
+		 * A waiter can only be cancelled while it is filed, otherwise it 
+		 * may have taken a tuple already.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return withdraw() && super.cancel(mayInterruptIfRunning);
+		}
+		
+		/*
+		 * Remove the waiter from its wait index. Return false if it is not
+		 * filed any more, i.e. it has been handed a tuple.
+		 */
+		boolean withdraw() {
+			WaitIndex index = this.index;
+			if (index == null) return false;
+			synchronized (index.monitor) {
+				if (list == null) return false;
+				index.remove(this);
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * The waiters that wait for the same pattern, in arrival order.
+	 */
+	private final static class WaitList {
+		final Pattern pattern;
+		final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+		// position of the item the list is filed under
+		int filed;
+		
+		WaitList(Pattern p) {
+			pattern = p;
+		}
+	}
+	
+	/*
+	 * This class is used to find the waiters whose pattern matches a tuple 
+	 * without checking every waiting pattern. It is not synchronized, the 
+	 * caller holds the monitor given at construction instead, which is the
+	 * stripe for the wait index of a stripe. The number of waiters is kept 
+	 * in a volatile field so that it can be checked without the monitor.
+	 * 
+	 * Indexes explanation (id is the id of a string in the symbol table):
+	 * indexes[i].get(id)[j] is a hash set that contains the wait lists 
+	 * 		whose pattern has length j + 1 and that are filed under the 
+	 * 		string of id at position i.
+	 * wildcards[j] is a hash set that contains the wait lists whose pattern
+	 * 		has length j + 1 and contains only nulls.
+	 */
+	private final static class WaitIndex {
+		
+		final Object monitor;
+		final Symbols symbols;
+		final boolean fair;
+		final HashMap<Pattern, WaitList> lists;
+		final ArrayList<IntMap<ArrayList<HashSet<WaitList>>>> indexes;
+		final ArrayList<HashSet<WaitList>> wildcards;
+		volatile int size = 0;
+		
+		WaitIndex(Object monitor, Symbols symbols, boolean fair) {
+			this.monitor = (monitor == null) ? this : monitor;
+			this.symbols = symbols;
+			this.fair = fair;
+			lists = new HashMap<Pattern, WaitList>();
+			indexes = new ArrayList<IntMap<ArrayList<HashSet<WaitList>>>>();
+			wildcards = new ArrayList<HashSet<WaitList>>();
+		}
+		
+		public void add(Pattern ptn, Waiter w) {
+			WaitList l = lists.get(ptn);
+			if (l == null) {
+				l = new WaitList(ptn);
+				lists.put(ptn, l);
+				file(l);
+			}
+			l.waiters.add(w);
+			w.index = this;
+			w.list = l;
+			size++;
+		}
+		
+		public void remove(Waiter w) {
+			WaitList l = w.list;
+			l.waiters.remove(w);
+			w.list = null;
+			size--;
+			if (l.waiters.isEmpty()) {
+				lists.remove(l.pattern);
+				unfile(l);
+			}
+		}
+		
+		/*
+		 * Hand the tuple to every read whose pattern matches it, removing 
+		 * the waiters and adding them to done. Return the get that is to 
+		 * take the tuple, which is left filed: the one that has waited 
+		 * longest if fair, otherwise the first found, or null if no get 
+		 * matches.
+		 */
+		public Waiter deliver(Tuple tpl, ArrayList<Waiter> done) {
+			return deliver(tpl, done, true);
+		}
+		
+		/*
+		 * Like deliver, but only return the get if reads is false.
+		 */
+		public Waiter deliver(Tuple tpl, ArrayList<Waiter> done, 
+				boolean reads) {
+			if (size == 0) return null;
+			
+			Waiter taker = null;
+			for (WaitList l : search(tpl)) {
+				Iterator<Waiter> it = l.waiters.iterator();
+				Waiter first = null;
+				while (it.hasNext()) {
+					Waiter w = it.next();
+					if (!w.toRemove) {
+						if (!reads) continue;
+						it.remove();
+						hand(w, tpl, done);
+					} else if (first == null) {
+						first = w;
+					}
+				}
+				if (l.waiters.isEmpty()) {
+					lists.remove(l.pattern);
+					unfile(l);
+				}
+				if (first != null && (taker == null || 
+						(fair && first.arrival < taker.arrival))) {
+					taker = first;
+				}
+			}
+			return taker;
+		}
+		
+		/*
+		 * Hand the tuple to a get of this index, which takes it away.
+		 */
+		public void take(Waiter w, Tuple tpl, ArrayList<Waiter> done) {
+			remove(w);
+			w.tuple = tpl;
+			done.add(w);
+		}
+		
+		private void hand(Waiter w, Tuple tpl, ArrayList<Waiter> done) {
+			w.list = null;
+			w.tuple = tpl;
+			size--;
+			done.add(w);
+		}
+		
+		/*
+		 * Return the wait lists whose pattern matches the tuple.
+		 */
+		private ArrayList<WaitList> search(Tuple tpl) {
+			ArrayList<WaitList> matching = new ArrayList<WaitList>();
+			int[] t = tpl.ids;
+			int n = t.length;
+			for (int i = 0; i < n && i < indexes.size(); i++) {
+				ArrayList<HashSet<WaitList>> list = indexes.get(i).get(t[i]);
+				if (list == null || list.size() < n) continue;
+				for (WaitList l : list.get(n - 1)) {
+					if (l.pattern.matches(tpl)) matching.add(l);
+				}
+			}
+			if (wildcards.size() >= n) {
+				matching.addAll(wildcards.get(n - 1));
+			}
+			return matching;
+		}
+		
+		private void file(WaitList l) {
+			l.pattern.intern(symbols);
+			int[] p = l.pattern.ids;
+			
+			// choose the item with the fewest patterns filed under it
+			HashSet<WaitList> smallest = null;
+			for (int i = 0; i < p.length; i++) {
+				if (p[i] == Symbols.NONE) continue;
+				HashSet<WaitList> set = set(i, p[i], p.length);
+				if (smallest == null || set.size() < smallest.size()) {
+					smallest = set;
+					l.filed = i;
+				}
+				if (set.isEmpty()) break;
+			}
+			
+			if (smallest == null) {
+				while (wildcards.size() < p.length) {
+					wildcards.add(new HashSet<WaitList>());
+				}
+				l.filed = -1;
+				wildcards.get(p.length - 1).add(l);
+			} else {
+				smallest.add(l);
+			}
+		}
+		
+		private void unfile(WaitList l) {
+			int[] p = l.pattern.ids;
+			int i = l.filed;
+			if (i < 0) {
+				wildcards.get(p.length - 1).remove(l);
+			} else {
+				// drop the index entry once no pattern is filed under it, 
+				// otherwise every distinct waited-for string would stay here
+				ArrayList<HashSet<WaitList>> list = indexes.get(i).get(p[i]);
+				list.get(p.length - 1).remove(l);
+				if (empty(list)) indexes.get(i).remove(p[i]);
+			}
+			l.pattern.release(symbols);
+		}
+		
+		private static boolean empty(ArrayList<HashSet<WaitList>> list) {
+			for (HashSet<WaitList> set : list) {
+				if (!set.isEmpty()) return false;
+			}
+			return true;
+		}
+		
+		/*
+		 * Return the set of wait lists of the given length filed under the 
+		 * string of id at position i, creating it if needed.
+		 */
+		private HashSet<WaitList> set(int i, int id, int length) {
+			while (indexes.size() <= i) {
+				indexes.add(new IntMap<ArrayList<HashSet<WaitList>>>());
+			}
+			ArrayList<HashSet<WaitList>> list = indexes.get(i).get(id);
+			if (list == null) {
+				list = new ArrayList<HashSet<WaitList>>();
+				indexes.get(i).put(id, list);
+			}
+			while (list.size() < length) {
+				list.add(new HashSet<WaitList>());
+			}
+			return list.get(length - 1);
+		}
+	}
+	
+	/*
+	 * This class spreads tuples over several TupleBases by the length and the
+	 * first string of the tuple. Each TupleBase is synchronized on its own, 
+	 * so this class needs no synchronization.
+	 */
+	private final static class StripedTupleBase {
+		
+		final TupleBase[] stripes;
+		
+		StripedTupleBase(int n, Symbols symbols, boolean bitmaps, 
+				boolean fair, Capacity capacity, boolean direct) {
+			int size = 1;
+			while (size < n) size <<= 1;
+			stripes = new TupleBase[size];
+			for (int i = 0; i < size; i++) {
+				stripes[i] = new TupleBase(symbols, bitmaps, fair, capacity, 
+						direct);
+			}
+		}
+		
+		public boolean add(Tuple tpl) {
+			String[] t = tpl.getStrings();
+			return stripe(t.length, t[0]).add(tpl);
+		}
+		
+		public Tuple search(Pattern ptn, boolean toRemove) {
+			String[] p = ptn.getStrings();
+			if (p[0] != null) {
+				return stripe(p.length, p[0]).search(ptn, toRemove);
+			}
+			for (TupleBase base : stripes) {
+				Tuple t = base.search(ptn, toRemove);
+				if (t != null) return t;
+			}
+			return null;
+		}
+		
+		/*
+		 * Put the tuples while holding the monitors of all stripes they go 
+		 * to, so that no other thread sees only some of them.
+		 */
+		public void putAll(final Tuple[] tpls, final ArrayList<Waiter> done,
+				final WaitIndex any) {
+			boolean[] used = new boolean[stripes.length];
+			for (Tuple tpl : tpls) {
+				String[] t = tpl.getStrings();
+				used[stripeOf(t.length, t[0])] = true;
+			}
+			locked(used, 0, new Runnable() {
+				public void run() {
+					for (Tuple tpl : tpls) {
+						String[] t = tpl.getStrings();
+						stripe(t.length, t[0]).put(tpl, done, any, 0);
+					}
+				}
+			});
+		}
+
+		/*
+		 * Collect up to max tuples matching the pattern, removing them if 
+		 * toRemove is true. A pattern starting with null holds the monitors 
+		 * of all stripes while collecting, so the result is a snapshot.
+		 */
+		public ArrayList<Tuple> searchAll(final Pattern ptn, 
+				final boolean toRemove, final int max) {
+			final ArrayList<Tuple> found = new ArrayList<Tuple>();
+			String[] p = ptn.getStrings();
+			if (p[0] != null) {
+				stripe(p.length, p[0]).searchAll(ptn, toRemove, max, found);
+				return found;
+			}
+			
+			boolean[] used = new boolean[stripes.length];
+			Arrays.fill(used, true);
+			locked(used, 0, new Runnable() {
+				public void run() {
+					for (TupleBase base : stripes) {
+						if (found.size() >= max) break;
+						base.searchAll(ptn, toRemove, max - found.size(), found);
+					}
+				}
+			});
+			return found;
+		}
+		
+		public TupleBase stripe(int length, String first) {
+			return stripes[stripeOf(length, first)];
+		}
+		
+		public int stripeOf(int length, String first) {
+			int h = first.hashCode() * 31 + length;
+			h ^= (h >>> 16);
+			return h & (stripes.length - 1);
+		}
+		
+		/*
+		 * Run the task while holding the monitors of the used stripes. They 
+		 * are always locked in ascending order, so that two bulk operations 
+		 * cannot deadlock.
+		 */
+		private void locked(boolean[] used, int from, Runnable task) {
+			while (from < stripes.length && !used[from]) from++;
+			if (from == stripes.length) {
+				task.run();
+			} else {
+				synchronized (stripes[from]) {
+					locked(used, from + 1, task);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * This class is used to store tuples and provides faster pattern matching.
+	 * It also holds the wait index of the patterns that can only match tuples
+	 * stored here, which is guarded by the monitor of the TupleBase.
+	 * 
+	 * Every stored tuple takes an int slot of slots, which is given to the 
+	 * next tuple once it is removed. The index sets hold slots instead of 
+	 * tuples, and a tuple is removed from them by looking up its ids again,
+	 * so neither boxed entries nor back references are kept. A set is an 
+	 * IntSet while it is small and becomes a Bitmap when it grows beyond 
+	 * BITMAP_MIN slots (unless bitmaps is false). When all candidate sets of
+	 * a pattern are bitmaps, their intersection is computed by and-ing them 
+	 * word by word; otherwise the smallest set is small and its members are 
+	 * looked up in the others.
+	 * 
+	 * With direct storage no Tuple is kept: the ids of the tuple in a slot 
+	 * are kept in records, at addresses[slot], and a Tuple is made up from 
+	 * them when the tuple is found. Such a Tuple is not the one that was 
+	 * put, so a stored tuple is told by the stamp of its slot instead.
+	 * 
+	 * Indexes explanation (the strings are keyed by their ids in the symbol 
+	 * table, so no string is hashed or compared here):
+	 * base[j] is the set of slots of the tuples whose length is j + 1, or 
+	 * 		null if there are none.
+	 * indexes[i] is the hash mapping of tuple[i].
+	 * indexes[i].get(id) is an array that contains several sets that have 
+	 * 		different length of tuple but all of these sets contain the tuple
+	 * 		whose ith position is the string of id.
+	 * indexes[i].get(id)[j] is the set of slots of the tuples whose length
+	 * 		is j + 1 and the ith string of them is the string of id, or null
+	 * 		if there are none.
+	 */
+	private final static class TupleBase {
+		
+		// sets of more slots are bitmaps, sets of less than a quarter not
+		static final int BITMAP_MIN = 64;
+		
+		final Symbols symbols;
+		final boolean bitmaps;
+		final Capacity capacity;
+		// told about the tuples stored and removed, see setJournal
+		volatile Journal journal;
+		// the stored tuples, or null with direct storage
+		Tuple[] slots;
+		// with direct storage, the ids of the stored tuples and their stamps
+		final Arena records;
+		int[] addresses, stamps;
+		int stamp;
+		// slots freed for reuse, and the first never used slot
+		int[] free = new int[16];
+		int freed, used;
+		final ArrayList<Slots> base;
+		final ArrayList<IntMap<Slots[]>> indexes;
+		final ArrayList<Slots> candidates;
+		final WaitIndex waiting;
+		
+		TupleBase(Symbols symbols, boolean bitmaps, boolean fair, 
+				Capacity capacity, boolean direct) {
+			this.symbols = symbols;
+			this.bitmaps = bitmaps;
+			this.capacity = capacity;
+			if (direct) {
+				records = new Arena();
+				addresses = new int[16];
+				stamps = new int[16];
+			} else {
+				records = null;
+				slots = new Tuple[16];
+			}
+			base = new ArrayList<Slots>();
+			indexes = new ArrayList<IntMap<Slots[]>>();
+			candidates = new ArrayList<Slots>();
+			waiting = new WaitIndex(this, symbols, fair);
+		}
+		
+		/*
+		 * Hand the tuple to the waiters, and store it unless a get takes 
+		 * it. A tuple that is taken at once is never indexed; its ids and
+		 * the room made for it are released right away.
+		 */
+		public synchronized void put(Tuple tpl, ArrayList<Waiter> done, 
+				WaitIndex any, long expires) {
+			if (hand(tpl, done, any)) {
+				symbols.release(tpl.ids);
+				capacity.release(tpl);
+			} else {
+				add(tpl);
+				Journal j = journal;
+				if (j != null) j.stored(tpl.getStrings(), expires);
+			}
+		}
+		
+		/*
+		 * Hand a tuple that is not to be stored to the waiters if a get 
+		 * takes it, and then to the reads too. Return true if it was taken.
+		 */
+		public synchronized boolean offer(Tuple tpl, ArrayList<Waiter> done,
+				WaitIndex any) {
+			if (waiting.deliver(tpl, done, false) == null && (any == null || 
+					any.deliver(tpl, done, false) == null)) {
+				return false;
+			}
+			hand(tpl, done, any);
+			symbols.release(tpl.ids);
+			return true;
+		}
+		
+		/*
+		 * Hand a stored tuple to the waiters, removing it if a get takes it.
+		 */
+		public synchronized void deliver(Tuple tpl, ArrayList<Waiter> done,
+				WaitIndex any) {
+			if (hand(tpl, done, any)) remove(tpl);
+		}
+		
+		/*
+		 * Hand a tuple to the waiters of this stripe and of any, unless any
+		 * is null. Every matching read gets the tuple, and then a matching 
+		 * get takes it away: the one of this stripe unless the space is fair
+		 * and the one of any has waited longer. Return true if it was taken.
+		 * The caller holds the monitor of any.
+		 */
+		private boolean hand(Tuple tpl, ArrayList<Waiter> done, 
+				WaitIndex any) {
+			Waiter taker = waiting.deliver(tpl, done);
+			if (any != null) {
+				Waiter w = any.deliver(tpl, done);
+				if (w != null && (taker == null || 
+						(waiting.fair && w.arrival < taker.arrival))) {
+					taker = w;
+				}
+			}
+			if (taker == null) return false;
+			taker.index.take(taker, tpl, done);
+			return true;
+		}
+		
+		public synchronized boolean contains(Tuple tpl) {
+			if (tpl.slot == Symbols.NONE) return false;
+			return (slots != null) ? slots[tpl.slot] == tpl : 
+				stamps[tpl.slot] == tpl.stamp;
+		}
+		
+		/*
+		 * Remove the tuple if it is still stored. Return true if it was.
+		 */
+		public synchronized boolean expire(Tuple tpl) {
+			if (!contains(tpl)) return false;
+			remove(tpl);
+			return true;
+		}
+		
+		public synchronized boolean add(Tuple tpl) {
+			if (tpl.slot != Symbols.NONE) {
+				System.err.println("Tuple: " + tpl.toString() + " existed.");
+				return false;
+			}
+			int n = tpl.size();
+			int slot = (freed > 0) ? free[--freed] : used++;
+			if (slots != null) {
+				if (slot == slots.length) {
+					slots = Arrays.copyOf(slots, slot * 2);
+				}
+				slots[slot] = tpl;
+			} else {
+				if (slot == addresses.length) {
+					addresses = Arrays.copyOf(addresses, slot * 2);
+					stamps = Arrays.copyOf(stamps, slot * 2);
+				}
+				addresses[slot] = records.putInts(tpl.ids);
+				// 0 is never a stamp, so a free slot matches no tuple
+				if (++stamp == 0) stamp = 1;
+				stamps[slot] = tpl.stamp = stamp;
+			}
+			tpl.slot = slot;
+			
+			// check if base and indexes are large enough for the tuple
+			while (base.size() < n) {
+				base.add(null);
+			}
+			while (indexes.size() < n) {
+				indexes.add(new IntMap<Slots[]>());
+			}
+			base.set(n - 1, added(base.get(n - 1), slot));
+			
+			// update indexes
+			int[] t = tpl.ids;
+			for (int i = 0; i < n; i++) {
+				IntMap<Slots[]> index = indexes.get(i);
+				Slots[] sets = index.get(t[i]);
+				if (sets == null || sets.length < n) {
+					sets = (sets == null) ? new Slots[n] : 
+						Arrays.copyOf(sets, n);
+					index.put(t[i], sets);
+				}
+				sets[n - 1] = added(sets[n - 1], slot);
+			}
+			return true;
+		}
+		
+		/*
+		 * Remove a stored tuple from the base and the indexes, dropping the
+		 * sets that become empty, and release its ids.
+		 */
+		private void remove(Tuple tpl) {
+			int n = tpl.size();
+			int slot = tpl.slot;
+			base.set(n - 1, removed(base.get(n - 1), slot));
+			
+			int[] t = tpl.ids;
+			for (int i = 0; i < n; i++) {
+				IntMap<Slots[]> index = indexes.get(i);
+				Slots[] sets = index.get(t[i]);
+				sets[n - 1] = removed(sets[n - 1], slot);
+				if (empty(sets)) index.remove(t[i]);
+			}
+			
+			if (slots != null) {
+				slots[slot] = null;
+			} else {
+				records.freeInts(addresses[slot]);
+				stamps[slot] = 0;
+			}
+			tpl.slot = Symbols.NONE;
+			if (freed == free.length) {
+				free = Arrays.copyOf(free, freed * 2);
+			}
+			free[freed++] = slot;
+			symbols.release(t);
+			capacity.release(tpl);
+			Journal j = journal;
+			if (j != null) j.removed(tpl.getStrings());
+		}
+		
+		/*
+		 * Add the slot to the set, which may be null or replaced by a set of 
+		 * the other kind. Return the set to keep.
+		 */
+		private Slots added(Slots set, int slot) {
+			if (set == null) set = new IntSet();
+			set.add(slot);
+			if (bitmaps && set instanceof IntSet && set.size() > BITMAP_MIN) {
+				set = new Bitmap(set);
+			}
+			return set;
+		}
+		
+		private Slots removed(Slots set, int slot) {
+			set.remove(slot);
+			if (set.isEmpty()) return null;
+			if (set instanceof Bitmap && set.size() < BITMAP_MIN / 4) {
+				set = new IntSet(set);
+			}
+			return set;
+		}
+		
+		private static boolean empty(Slots[] sets) {
+			for (Slots set : sets) {
+				if (set != null) return false;
+			}
+			return true;
+		}
+		
+		/* 
+		 * search tuple that matches pattern in tuple space and remove the 
+		 * matched tuple if toRemove is true.
+		 * We have to make sure that search and remove operations form an 
+		 * atomic operation. Thus, we put tuple-removing here.
+		 */
+		public synchronized Tuple search(Pattern ptn, boolean toRemove) {
+			Slots smallest = prepare(ptn);
+			if (smallest == null) return null;
+			
+			int k = next(smallest, 0);
+			if (k == Symbols.NONE) return null;
+			Tuple t = tuple(smallest.at(k));
+			if (toRemove) remove(t);
+			return t;
+		}
+		
+		/*
+		 * Like search, but collect up to max matching tuples into found.
+		 * The tuples are removed after the whole candidate set has been 
+		 * walked through, since removing changes the candidate sets.
+		 */
+		public synchronized void searchAll(Pattern ptn, boolean toRemove, 
+				int max, ArrayList<Tuple> found) {
+			Slots smallest = prepare(ptn);
+			if (smallest == null) return;
+			
+			int start = found.size();
+			for (int k = next(smallest, 0); k != Symbols.NONE && 
+					found.size() - start < max; k = next(smallest, k + 1)) {
+				found.add(tuple(smallest.at(k)));
+			}
+			if (toRemove) {
+				for (int i = start; i < found.size(); i++) {
+					remove(found.get(i));
+				}
+			}
+		}
+		
+		/*
+		 * Return the tuple stored in the slot. With direct storage it is 
+		 * decoded from the ids, which must be done before they are released.
+		 */
+		private Tuple tuple(int slot) {
+			if (slots != null) return slots[slot];
+			int[] ids = records.getInts(addresses[slot]);
+			String[] strings = new String[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				strings[i] = symbols.string(ids[i]);
+			}
+			Tuple t = new Tuple(strings, ids);
+			t.slot = slot;
+			t.stamp = stamps[slot];
+			return t;
+		}
+		
+		/*
+		 * Return the first position of smallest from position on whose slot
+		 * is in all candidate sets, or NONE. If they are all bitmaps, the
+		 * positions of smallest are its slots.
+		 */
+		private int next(Slots smallest, int position) {
+			boolean and = candidates.size() > 1;
+			for (Slots set : candidates) {
+				and &= set instanceof Bitmap;
+			}
+			if (and) return Bitmap.next(candidates, position);
+			
+			// intersection of candidate sets
+			for (int k = smallest.next(position); k != Symbols.NONE; 
+					k = smallest.next(k + 1)) {
+				if (inCandidates(smallest.at(k), smallest)) return k;
+			}
+			return Symbols.NONE;
+		}
+		
+		/*
+		 * Generate candidate sets and return the one who has the minimal 
+		 * size. If the pattern contains only nulls, there are no candidate
+		 * sets and all tuples of the same length are returned. Return null 
+		 * if no tuple can match the pattern, e.g. if one of its strings has 
+		 * no id, i.e. is in no stored tuple. The ids are looked up under the 
+		 * monitor since the id of a string that leaves the space is reused.
+		 */
+		private Slots prepare(Pattern ptn) {
+			int n = ptn.size();
+			if (indexes.size() < n || base.size() < n) return null;
+			
+			candidates.clear();
+			Slots smallest = base.get(n - 1);
+			if (smallest == null) return null;
+			
+			String[] p = ptn.getStrings();
+			for (int i = 0; i < n; i++) {
+				if (p[i] != null) {
+					int id = symbols.lookup(p[i]);
+					if (id == Symbols.NONE) return null;
+					Slots[] sets = indexes.get(i).get(id);
+					if (sets == null || sets.length < n || sets[n - 1] == null) {
+						return null;
+					}
+					Slots hs = sets[n - 1];
+					if (candidates.isEmpty() || hs.size() < smallest.size()) {
+						smallest = hs;
+					}
+					candidates.add(hs);
+				}
+			}
+			return smallest;
+		}
+		
+		private boolean inCandidates(int slot, Slots smallest) {
+			for (Slots set : candidates) {
+				if (set != smallest && !set.contains(slot)) return false;
+			}
+			return true;
+		}
+	}
+	
+	/*
+	 * The symbol table, which gives every string of a stored tuple or waiting
+	 * pattern a small int id, so that the indexes are keyed and patterns are
+	 * matched by ints. An id is counted for each array it was interned for 
+	 * and freed, to be reused, when the last one is released; otherwise 
+	 * every chat message ever written would keep its id.
+	 * 
+	 * The table is split into segments by the hash of the string, each of 
+	 * which is synchronized on its own, so that puts of unrelated tuples do 
+	 * not meet here. The low bits of an id tell its segment. A segment 
+	 * monitor is taken last, after the monitors of stripes and wait indexes.
+	 * With direct storage the segments keep the strings in an arena instead
+	 * of String objects.
+	 */
+	private final static class Symbols {
+		
+		static final int NONE = -1;
+		static final int SEGMENT_BITS = 4;
+		
+		final Segment[] segments;
+		
+		Symbols(boolean direct) {
+			segments = new Segment[1 << SEGMENT_BITS];
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = direct ? new DirectSegment(i) : 
+					new HeapSegment(i);
+			}
+		}
+		
+		/*
+		 * Return the ids of the strings, NONE for null, and replace the 
+		 * strings by the equal ones kept in the table, if they are kept on 
+		 * the heap.
+		 */
+		public int[] intern(String[] strings) {
+			int[] ids = new int[strings.length];
+			for (int i = 0; i < strings.length; i++) {
+				if (strings[i] == null) {
+					ids[i] = NONE;
+				} else {
+					ids[i] = segment(strings[i]).intern(strings, i);
+				}
+			}
+			return ids;
+		}
+		
+		public void release(int[] ids) {
+			for (int id : ids) {
+				if (id != NONE) {
+					segments[id & (segments.length - 1)].release(
+							id >>> SEGMENT_BITS);
+				}
+			}
+		}
+		
+		/*
+		 * Return the id of the string, or NONE if it has none, i.e. no 
+		 * stored tuple or waiting pattern contains it.
+		 */
+		public int lookup(String s) {
+			return segment(s).lookup(s);
+		}
+		
+		/* Return the string of an id that has not been released. */
+		public String string(int id) {
+			return segments[id & (segments.length - 1)].string(
+					id >>> SEGMENT_BITS);
+		}
+		
+		private Segment segment(String s) {
+			return segments[hash(s) & (segments.length - 1)];
+		}
+		
+		static int hash(String s) {
+			int h = s.hashCode();
+			return h ^ (h >>> 16);
+		}
+		
+		/*
+		 * The ids of a segment are slots, counted in counts. Subclasses keep
+		 * the string of each slot and find the slot of a string.
+		 */
+		private abstract static class Segment {
+			final int number;
+			int[] counts = new int[16];
+			// slots freed for reuse, and the first never used slot
+			int[] free = new int[16];
+			int freed, used;
+			
+			Segment(int number) {
+				this.number = number;
+			}
+			
+			synchronized int intern(String[] strings, int i) {
+				int slot = find(strings[i]);
+				if (slot == NONE) {
+					slot = (freed > 0) ? free[--freed] : used++;
+					if (slot == counts.length) {
+						counts = Arrays.copyOf(counts, slot * 2);
+						grow(slot * 2);
+					}
+					store(slot, strings[i]);
+				} else {
+					share(slot, strings, i);
+				}
+				counts[slot]++;
+				return slot << SEGMENT_BITS | number;
+			}
+			
+			synchronized void release(int slot) {
+				if (--counts[slot] > 0) return;
+				drop(slot);
+				if (freed == free.length) {
+					free = Arrays.copyOf(free, freed * 2);
+				}
+				free[freed++] = slot;
+			}
+			
+			synchronized int lookup(String s) {
+				int slot = find(s);
+				return (slot == NONE) ? NONE : slot << SEGMENT_BITS | number;
+			}
+			
+			synchronized String string(int slot) {
+				return stored(slot);
+			}
+			
+			// the slot of the string, or NONE
+			abstract int find(String s);
+			
+			// make room for capacity slots
+			abstract void grow(int capacity);
+			
+			abstract void store(int slot, String s);
+			
+			// replace strings[i] by the string of the slot, if it is kept
+			abstract void share(int slot, String[] strings, int i);
+			
+			abstract String stored(int slot);
+			
+			abstract void drop(int slot);
+		}
+		
+		private final static class HeapSegment extends Segment {
+			final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+			String[] strings = new String[16];
+			
+			HeapSegment(int number) {
+				super(number);
+			}
+			
+			int find(String s) {
+				Integer slot = ids.get(s);
+				return (slot == null) ? NONE : slot;
+			}
+			
+			void grow(int capacity) {
+				strings = Arrays.copyOf(strings, capacity);
+			}
+			
+			void store(int slot, String s) {
+				strings[slot] = s;
+				ids.put(s, slot);
+			}
+			
+			void share(int slot, String[] strings, int i) {
+				strings[i] = this.strings[slot];
+			}
+			
+			String stored(int slot) {
+				return strings[slot];
+			}
+			
+			void drop(int slot) {
+				ids.remove(strings[slot]);
+				strings[slot] = null;
+			}
+		}
+		
+		/*
+		 * A segment whose strings are kept in an arena. The slots are found 
+		 * by the hash of their string in table, which holds slot + 1 (0 for 
+		 * none) with open addressing like IntMap, so only int arrays are 
+		 * left on the heap.
+		 */
+		private final static class DirectSegment extends Segment {
+			final Arena arena = new Arena();
+			int[] table = new int[32];
+			int[] hashes = new int[16], addresses = new int[16];
+			
+			DirectSegment(int number) {
+				super(number);
+			}
+			
+			int find(String s) {
+				int h = hash(s);
+				int mask = table.length - 1;
+				for (int i = h & mask; table[i] != 0; i = (i + 1) & mask) {
+					int slot = table[i] - 1;
+					if (hashes[slot] == h && 
+							arena.equals(addresses[slot], s)) {
+						return slot;
+					}
+				}
+				return NONE;
+			}
+			
+			void grow(int capacity) {
+				hashes = Arrays.copyOf(hashes, capacity);
+				addresses = Arrays.copyOf(addresses, capacity);
+				table = new int[capacity * 2];
+				for (int slot = 0; slot < used; slot++) {
+					if (counts[slot] > 0) insert(slot);
+				}
+			}
+			
+			void store(int slot, String s) {
+				hashes[slot] = hash(s);
+				addresses[slot] = arena.putString(s);
+				insert(slot);
+			}
+			
+			private void insert(int slot) {
+				int mask = table.length - 1;
+				int i = hashes[slot] & mask;
+				while (table[i] != 0) i = (i + 1) & mask;
+				table[i] = slot + 1;
+			}
+			
+			void share(int slot, String[] strings, int i) {
+			}
+			
+			String stored(int slot) {
+				return arena.getString(addresses[slot]);
+			}
+			
+			void drop(int slot) {
+				int mask = table.length - 1;
+				int i = hashes[slot] & mask;
+				while (table[i] != slot + 1) i = (i + 1) & mask;
+				// move back the slots that would not be found past the gap
+				for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+					int home = hashes[table[j] - 1] & mask;
+					if (((j - home) & mask) >= ((j - i) & mask)) {
+						table[i] = table[j];
+						i = j;
+					}
 				}
-			}		
+				table[i] = 0;
+				arena.freeString(addresses[slot]);
+			}
+		}
+	}
+	
+	/*
+	 * Memory off the heap for direct storage, taken from direct ByteBuffers
+	 * of CHUNK bytes. A block is addressed by an int that counts 8 byte 
+	 * units, the high bits telling the chunk, so an arena holds up to 16GB.
+	 * A freed block is kept for reuse in the free list of its size: blocks 
+	 * of up to SMALL units have a list per size, larger ones are rounded up
+	 * to a power of two. A block larger than a chunk gets a buffer of its 
+	 * own. An arena is not synchronized; it is guarded by its owner.
+	 * 
+	 * A string is stored as an int, its length times two plus one if it has
+	 * chars beyond Latin-1, followed by a byte per char or by the chars. An 
+	 * int array is stored as its length followed by the ints.
+	 */
+	private final static class Arena {
+		
+		static final int UNIT_BITS = 3, CHUNK_BITS = 17;
+		static final int CHUNK = 1 << (CHUNK_BITS + UNIT_BITS);
+		static final int SMALL = 64, SMALL_BITS = 6;
+		
+		private ByteBuffer[] chunks = new ByteBuffer[4];
+		private int count;
+		// the chunk blocks are cut from and its first unit not given out
+		private int current = Symbols.NONE, top;
+		private int[][] free = new int[SMALL + 32][];
+		private int[] freed = new int[SMALL + 32];
+		
+		/* Return the address of a block of at least size bytes. */
+		public int allocate(int size) {
+			int list = list((size + (1 << UNIT_BITS) - 1) >>> UNIT_BITS);
+			if (freed[list] > 0) return free[list][--freed[list]];
+			int units = units(list);
+			if (units > 1 << CHUNK_BITS) {
+				return chunk(ByteBuffer.allocateDirect(units << UNIT_BITS)) 
+						<< CHUNK_BITS;
+			}
+			if (current == Symbols.NONE || top + units > 1 << CHUNK_BITS) {
+				current = chunk(ByteBuffer.allocateDirect(CHUNK));
+				top = 0;
+			}
+			int address = current << CHUNK_BITS | top;
+			top += units;
+			return address;
 		}
-		delLock(p);
 		
-		// avoid the same lock is obtained two or more times
-		l = getLock(t);
-		if(l != null){
-			synchronized(l){
-				l.notify();
+		public void free(int address, int size) {
+			int list = list((size + (1 << UNIT_BITS) - 1) >>> UNIT_BITS);
+			if (free[list] == null) {
+				free[list] = new int[16];
+			} else if (freed[list] == free[list].length) {
+				free[list] = Arrays.copyOf(free[list], freed[list] * 2);
 			}
+			free[list][freed[list]++] = address;
 		}
 		
-		return t.getStrings();
-	}
-
-	public String[] read(String... pattern) {
-		Pattern p = new Pattern(pattern);
-		Tuple t;
+		private int chunk(ByteBuffer b) {
+			if (count == 1 << (31 - CHUNK_BITS)) {
+				throw new IllegalStateException("Arena is full");
+			}
+			if (count == chunks.length) {
+				chunks = Arrays.copyOf(chunks, count * 2);
+			}
+			chunks[count] = b;
+			return count++;
+		}
 		
-		Lock l = newLock(p);
-		synchronized(l){
-			while ((t = space.search(p, false)) == null) {
-				try {
-					l.wait();
-				} catch (InterruptedException e) {
-					System.err.println(e.getMessage());
+		private static int list(int units) {
+			if (units <= SMALL) return Math.max(units, 1);
+			return SMALL + 32 - Integer.numberOfLeadingZeros(units - 1) - 
+					SMALL_BITS;
+		}
+		
+		private static int units(int list) {
+			return (list <= SMALL) ? list : 1 << (list - SMALL + SMALL_BITS);
+		}
+		
+		private ByteBuffer buffer(int address) {
+			return chunks[address >>> CHUNK_BITS];
+		}
+		
+		private static int offset(int address) {
+			return (address & ((1 << CHUNK_BITS) - 1)) << UNIT_BITS;
+		}
+		
+		public int putString(String s) {
+			boolean wide = false;
+			for (int i = 0; i < s.length() && !wide; i++) {
+				wide = s.charAt(i) > 0xff;
+			}
+			int address = allocate(4 + (wide ? 2 : 1) * s.length());
+			ByteBuffer b = buffer(address);
+			int at = offset(address);
+			b.putInt(at, s.length() << 1 | (wide ? 1 : 0));
+			at += 4;
+			for (int i = 0; i < s.length(); i++) {
+				if (wide) {
+					b.putChar(at + 2 * i, s.charAt(i));
+				} else {
+					b.put(at + i, (byte) s.charAt(i));
 				}
 			}
+			return address;
 		}
-		delLock(p);
 		
-		// notify other threads that might be waiting if any
-		l = getLock(t);
-		if(l != null){
-			synchronized(l){
-				l.notify();
+		/* Compare the stored string with s without decoding it. */
+		public boolean equals(int address, String s) {
+			ByteBuffer b = buffer(address);
+			int at = offset(address);
+			int header = b.getInt(at);
+			if (header >>> 1 != s.length()) return false;
+			at += 4;
+			boolean wide = (header & 1) != 0;
+			for (int i = 0; i < s.length(); i++) {
+				char c = wide ? b.getChar(at + 2 * i) : 
+					(char) (b.get(at + i) & 0xff);
+				if (c != s.charAt(i)) return false;
 			}
+			return true;
 		}
 		
-		return t.getStrings();
-	}
-
-	public void put(String... tuple) {
-		Tuple t = new Tuple(tuple);
-		space.add(t);
+		public String getString(int address) {
+			ByteBuffer b = buffer(address);
+			int at = offset(address);
+			int header = b.getInt(at);
+			at += 4;
+			char[] chars = new char[header >>> 1];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = ((header & 1) != 0) ? b.getChar(at + 2 * i) : 
+					(char) (b.get(at + i) & 0xff);
+			}
+			return new String(chars);
+		}
+		
+		public void freeString(int address) {
+			int header = buffer(address).getInt(offset(address));
+			free(address, 4 + (1 + (header & 1)) * (header >>> 1));
+		}
 		
-		Lock l = getLock(t);
-		if(l != null){
-			synchronized(l){
-				l.notify();
+		public int putInts(int[] ints) {
+			int address = allocate(4 * (1 + ints.length));
+			ByteBuffer b = buffer(address);
+			int at = offset(address);
+			b.putInt(at, ints.length);
+			for (int i = 0; i < ints.length; i++) {
+				b.putInt(at + 4 * (i + 1), ints[i]);
 			}
+			return address;
+		}
+		
+		public int[] getInts(int address) {
+			ByteBuffer b = buffer(address);
+			int at = offset(address);
+			int[] ints = new int[b.getInt(at)];
+			for (int i = 0; i < ints.length; i++) {
+				ints[i] = b.getInt(at + 4 * (i + 1));
+			}
+			return ints;
+		}
+		
+		public void freeInts(int address) {
+			free(address, 4 * (1 + buffer(address).getInt(offset(address))));
 		}
 	}
 	
 	/*
-	 * If there is an existed lock that is used by pattern p, we continue  
-	 * using that lock. If not, then create a new lock for that pattern. 
-	 * The caller of this function will invoke wait() if necessary.
+	 * A hash map from ints (not negative) to values, without the Integer 
+	 * objects of a HashMap. Open addressing with linear probing; a removed 
+	 * entry is filled by moving up the entries probed after it.
 	 */
-	private Lock newLock(Pattern p) {
-		synchronized (waiting) {
-			Lock l;
-			if (waiting.containsKey(p)) {
-				l = waiting.get(p);
-			} else {
-				l = new Lock();
-				waiting.put(p, l);
+	private final static class IntMap<V> {
+		
+		private int[] keys;
+		private Object[] values;
+		private int size;
+		
+		IntMap() {
+			keys = new int[8];
+			Arrays.fill(keys, Symbols.NONE);
+			values = new Object[8];
+		}
+		
+		private int slot(int key) {
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (keys.length - 1);
+		}
+		
+		@SuppressWarnings("unchecked")
+		public V get(int key) {
+			for (int i = slot(key); keys[i] != Symbols.NONE; 
+					i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == key) return (V) values[i];
+			}
+			return null;
+		}
+		
+		public void put(int key, V value) {
+			int i = slot(key);
+			while (keys[i] != Symbols.NONE && keys[i] != key) {
+				i = (i + 1) & (keys.length - 1);
+			}
+			if (keys[i] == Symbols.NONE) {
+				if (++size * 2 > keys.length) {
+					grow();
+					put(key, value);
+					return;
+				}
+				keys[i] = key;
+			}
+			values[i] = value;
+		}
+		
+		public void remove(int key) {
+			int mask = keys.length - 1;
+			int i = slot(key);
+			while (keys[i] != key) {
+				if (keys[i] == Symbols.NONE) return;
+				i = (i + 1) & mask;
+			}
+			size--;
+			// move back the entries that would not be found past the gap
+			for (int j = (i + 1) & mask; keys[j] != Symbols.NONE; 
+					j = (j + 1) & mask) {
+				int home = slot(keys[j]);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = Symbols.NONE;
+			values[i] = null;
+		}
+		
+		private void grow() {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			Arrays.fill(keys, Symbols.NONE);
+			values = new Object[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != Symbols.NONE) {
+					int j = slot(oldKeys[i]);
+					while (keys[j] != Symbols.NONE) {
+						j = (j + 1) & (keys.length - 1);
+					}
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+					size++;
+				}
 			}
-			l.ref++;
-			return l;
 		}
 	}
 	
 	/*
-	 * Delete the lock if its reference becomes zero.
+	 * A set of slots (ints that are not negative). It is walked through by 
+	 * position: next(k) is the first position from k on that holds a member,
+	 * or NONE, and at(k) is the member there.
 	 */
-	private void delLock(Pattern p) {
-		synchronized (waiting) {
-			Lock l = waiting.get(p);
-			l.ref--;
-			if (l.ref == 0) {
-				waiting.remove(p);
-			}
+	private abstract static class Slots {
+		
+		public abstract boolean add(int slot);
+		
+		public abstract boolean remove(int slot);
+		
+		public abstract boolean contains(int slot);
+		
+		public abstract int size();
+		
+		public abstract int next(int position);
+		
+		public abstract int at(int position);
+		
+		public boolean isEmpty() {
+			return size() == 0;
 		}
 	}
 	
 	/*
-	 * Find the used lock of some pattern that matches the tuple.
-	 * Return null if no lock exists.
-	 * The caller of this function should invoke notify() later.
+	 * A hash set of slots, stored in an int array like the keys of IntMap. 
+	 * The positions are the indexes of the array, which shrinks again when
+	 * the set does.
 	 */
-	private Lock getLock(Tuple tpl) {
-		synchronized (waiting) {
-			Set<Pattern> ps = waiting.keySet();
-			for (Pattern p : ps) {
-				if (p.matches(tpl)) return waiting.get(p);
+	private final static class IntSet extends Slots {
+		
+		private int[] items;
+		private int size;
+		
+		IntSet() {
+			items = new int[8];
+			Arrays.fill(items, Symbols.NONE);
+		}
+		
+		IntSet(Slots set) {
+			this();
+			for (int k = set.next(0); k != Symbols.NONE; k = set.next(k + 1)) {
+				add(set.at(k));
+			}
+		}
+		
+		private int slot(int item) {
+			int h = item * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (items.length - 1);
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int next(int position) {
+			for (int k = position; k < items.length; k++) {
+				if (items[k] != Symbols.NONE) return k;
+			}
+			return Symbols.NONE;
+		}
+		
+		public int at(int position) {
+			return items[position];
+		}
+		
+		public boolean contains(int item) {
+			for (int i = slot(item); items[i] != Symbols.NONE; 
+					i = (i + 1) & (items.length - 1)) {
+				if (items[i] == item) return true;
+			}
+			return false;
+		}
+		
+		public boolean add(int item) {
+			int i = slot(item);
+			while (items[i] != Symbols.NONE) {
+				if (items[i] == item) return false;
+				i = (i + 1) & (items.length - 1);
+			}
+			items[i] = item;
+			if (++size * 2 > items.length) resize(items.length * 2);
+			return true;
+		}
+		
+		public boolean remove(int item) {
+			int mask = items.length - 1;
+			int i = slot(item);
+			while (items[i] != item) {
+				if (items[i] == Symbols.NONE) return false;
+				i = (i + 1) & mask;
+			}
+			// move back the items that would not be found past the gap
+			for (int j = (i + 1) & mask; items[j] != Symbols.NONE; 
+					j = (j + 1) & mask) {
+				if (((j - slot(items[j])) & mask) >= ((j - i) & mask)) {
+					items[i] = items[j];
+					i = j;
+				}
+			}
+			items[i] = Symbols.NONE;
+			if (--size * 8 < items.length && items.length > 8) {
+				resize(items.length / 2);
+			}
+			return true;
+		}
+		
+		private void resize(int capacity) {
+			int[] old = items;
+			items = new int[capacity];
+			Arrays.fill(items, Symbols.NONE);
+			for (int item : old) {
+				if (item != Symbols.NONE) {
+					int i = slot(item);
+					while (items[i] != Symbols.NONE) {
+						i = (i + 1) & (capacity - 1);
+					}
+					items[i] = item;
+				}
 			}
 		}
-		return null;
 	}
 	
-	
-	/*****************************************************************
-	 * Followings are static nested classes used by LocalTupleSpace. *
-	 ****************************************************************/
-	
-	/* 
-	 * This class is used for synchronization between threads
-	 * if the lock is used, then ref is greater than 0
+	/*
+	 * A compressed bitmap of slots in the manner of Roaring bitmaps: the 
+	 * slots are split by their high 16 bits into containers, kept in the 
+	 * order of these keys. A container holds the low 16 bits of its slots in
+	 * a sorted array while it has at most ARRAY_MAX of them, and in a bitmap 
+	 * of 2^16 bits otherwise. The positions are the slots themselves, so the
+	 * slots are walked through in ascending order.
 	 */
-	private final static class Lock {
-		int ref = 0;
+	private final static class Bitmap extends Slots {
+		
+		private int[] keys = new int[2];
+		private Container[] containers = new Container[2];
+		private int count, size;
+		
+		Bitmap(Slots set) {
+			for (int k = set.next(0); k != Symbols.NONE; k = set.next(k + 1)) {
+				add(set.at(k));
+			}
+		}
+		
+		/*
+		 * Return the index of the container of key, or -(insertion point) - 1
+		 * if there is none.
+		 */
+		private int find(int key) {
+			return Arrays.binarySearch(keys, 0, count, key);
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public boolean add(int slot) {
+			int i = find(slot >>> 16);
+			if (i < 0) {
+				i = -i - 1;
+				if (count == keys.length) {
+					keys = Arrays.copyOf(keys, count * 2);
+					containers = Arrays.copyOf(containers, count * 2);
+				}
+				System.arraycopy(keys, i, keys, i + 1, count - i);
+				System.arraycopy(containers, i, containers, i + 1, count - i);
+				keys[i] = slot >>> 16;
+				containers[i] = new Container();
+				count++;
+			}
+			if (!containers[i].add(slot & 0xFFFF)) return false;
+			size++;
+			return true;
+		}
+		
+		public boolean remove(int slot) {
+			int i = find(slot >>> 16);
+			if (i < 0 || !containers[i].remove(slot & 0xFFFF)) return false;
+			size--;
+			if (containers[i].card == 0) {
+				count--;
+				System.arraycopy(keys, i + 1, keys, i, count - i);
+				System.arraycopy(containers, i + 1, containers, i, count - i);
+				containers[count] = null;
+			}
+			return true;
+		}
+		
+		public boolean contains(int slot) {
+			int i = find(slot >>> 16);
+			return i >= 0 && containers[i].contains(slot & 0xFFFF);
+		}
+		
+		public int next(int position) {
+			return next(Arrays.<Slots>asList(this), position);
+		}
+		
+		public int at(int position) {
+			return position;
+		}
+		
+		/*
+		 * Return the least slot not below from that is in all the bitmaps, 
+		 * or NONE. Only the containers whose key all bitmaps have are looked 
+		 * at; they are intersected by Container.next.
+		 */
+		static int next(java.util.List<Slots> sets, int from) {
+			Bitmap driver = null;
+			for (Slots set : sets) {
+				Bitmap b = (Bitmap) set;
+				if (driver == null || b.count < driver.count) driver = b;
+			}
+			Container[] cs = new Container[sets.size()];
+			int i = driver.find(from >>> 16);
+			if (i < 0) {
+				i = -i - 1;
+				from = 0;
+			}
+			for (; i < driver.count; i++, from = 0) {
+				int key = driver.keys[i];
+				boolean all = true;
+				for (int j = 0; j < cs.length && all; j++) {
+					Bitmap b = (Bitmap) sets.get(j);
+					int c = b.find(key);
+					if (c < 0) all = false;
+					else cs[j] = b.containers[c];
+				}
+				if (!all) continue;
+				int low = Container.next(cs, from & 0xFFFF);
+				if (low >= 0) return key << 16 | low;
+			}
+			return Symbols.NONE;
+		}
 	}
 	
 	/*
-	 * This class is used to store tuples and provides faster pattern matching.
-	 * 
-	 * Indexes explanation:
-	 * indexes[i] is the hash mapping of tuple[i].
-	 * indexes[i].get("str") is an array that contains several sets that have 
-	 * 		different length of tuple but all of these sets contain the tuple
-	 * 		whose ith position is "str".
-	 * indexes[i].get("str")[j] is a hash set that contains tuples whose length
-	 * 		is j + 1 and the ith string of them is "str".
+	 * A container of Bitmap: the low 16 bits of up to 2^16 slots, sorted in 
+	 * array while there are at most ARRAY_MAX of them, otherwise as the bits
+	 * of words. A bitmap goes back to an array when it falls to half of 
+	 * ARRAY_MAX, so that a container at the border does not flip each time.
 	 */
-	private final static class TupleBase {
+	private final static class Container {
 		
-		final ArrayList<HashSet<Tuple>> base;
-		final ArrayList<HashMap<String, ArrayList<HashSet<Tuple>>>> indexes;
-		final ArrayList<HashSet<Tuple>> candidates;
+		static final int ARRAY_MAX = 4096;
 		
-		TupleBase() {
-			base = new ArrayList<HashSet<Tuple>>();
-			indexes = new ArrayList<HashMap<String, ArrayList<HashSet<Tuple>>>>();
-			candidates = new ArrayList<HashSet<Tuple>>();
+		char[] array = new char[4];
+		long[] words;
+		int card;
+		
+		boolean contains(int low) {
+			if (words != null) return (words[low >>> 6] & 1L << low) != 0;
+			return Arrays.binarySearch(array, 0, card, (char) low) >= 0;
 		}
 		
-		public synchronized boolean add(Tuple tpl) {
-			// check if base is large enough for the new coming tuple
-			while (base.size() < tpl.size()) {
-				base.add(new HashSet<Tuple>());
+		boolean add(int low) {
+			if (words != null) {
+				long bit = 1L << low;
+				if ((words[low >>> 6] & bit) != 0) return false;
+				words[low >>> 6] |= bit;
+				card++;
+				return true;
 			}
-			// add tuple into tuple space
-			if (base.get(tpl.size() - 1).add(tpl)) {
-				tpl.referredBy(base.get(tpl.size() - 1));
-			} else {
-				System.err.println("Tuple: " + tpl.toString() + " existed.");
-				return false;
+			int i = Arrays.binarySearch(array, 0, card, (char) low);
+			if (i >= 0) return false;
+			if (card == ARRAY_MAX) {
+				words = new long[1 << 10];
+				for (int k = 0; k < card; k++) {
+					words[array[k] >>> 6] |= 1L << array[k];
+				}
+				array = null;
+				words[low >>> 6] |= 1L << low;
+				card++;
+				return true;
 			}
-			
-			// check if indexes is large enough for the new coming tuple
-			while (indexes.size() < tpl.size()) {
-				indexes.add(new HashMap<String, ArrayList<HashSet<Tuple>>>());
+			i = -i - 1;
+			if (card == array.length) {
+				array = Arrays.copyOf(array, Math.min(card * 2, ARRAY_MAX));
 			}
-			// update indexes
-			String[] t = tpl.getStrings();
-			boolean error = false;
-			for (int i = 0; i < tpl.size(); i++) {
-				ArrayList<HashSet<Tuple>> list = indexes.get(i).get(t[i]);
-				if (list == null) {
-					list = new ArrayList<HashSet<Tuple>>();
-					indexes.get(i).put(t[i], list);
-				}
-				while (list.size() < tpl.size()) {
-					list.add(new HashSet<Tuple>());
-				}
-				if (list.get(tpl.size() - 1).add(tpl)) {
-					tpl.referredBy(list.get(tpl.size() - 1));
-				} else {
-					error = true;
-					System.err.println("Tuple: " + tpl.toString() + 
-						"existed in indexes " + i);
+			System.arraycopy(array, i, array, i + 1, card - i);
+			array[i] = (char) low;
+			card++;
+			return true;
+		}
+		
+		boolean remove(int low) {
+			if (words != null) {
+				long bit = 1L << low;
+				if ((words[low >>> 6] & bit) == 0) return false;
+				words[low >>> 6] &= ~bit;
+				if (--card <= ARRAY_MAX / 2) {
+					array = new char[ARRAY_MAX];
+					int k = 0;
+					for (int w = 0; w < words.length; w++) {
+						for (long word = words[w]; word != 0; word &= word - 1) {
+							array[k++] = (char) (w << 6 | 
+									Long.numberOfTrailingZeros(word));
+						}
+					}
+					words = null;
 				}
-			}
-			
-			// if error happens, clear index of current tuple
-			if (error) {
-				tpl.clear();
-				return false;
-			} else 
 				return true;
+			}
+			int i = Arrays.binarySearch(array, 0, card, (char) low);
+			if (i < 0) return false;
+			System.arraycopy(array, i + 1, array, i, card - i - 1);
+			card--;
+			return true;
 		}
 		
-		/* 
-		 * search tuple that matches pattern in tuple space and remove the 
-		 * matched tuple if toRemove is true.
-		 * We have to make sure that search and remove operations form an 
-		 * atomic operation. Thus, we put tuple-removing here.
+		/*
+		 * Return the least low bits not below from that are in all the 
+		 * containers, or -1. If all are bitmaps, their words are and-ed; 
+		 * otherwise the members of the smallest array are looked up in the
+		 * other containers.
 		 */
-		public synchronized Tuple search(Pattern ptn, boolean toRemove) {
-			if (indexes.size() < ptn.size() || 
-				base.size() < ptn.size()) return null;
-			
-			// generate candidate sets and find one who has the minimal size
-			candidates.clear();
-			
-			int iCandidates = 0;
-			int sizeMin = Integer.MAX_VALUE;
-			int indexMin = 0;
-			
-			String[] p = ptn.getStrings();
-			for (int i = 0; i < p.length; i++) {
-				if (p[i] != null) {
-					ArrayList<HashSet<Tuple>> list = indexes.get(i).get(p[i]);
-					if (list == null || list.size() < p.length ||
-						list.get(p.length - 1).isEmpty()) {
-						return null;
-					} else {
-						HashSet<Tuple> hs = list.get(p.length - 1);
-						candidates.add(hs);
-						if (hs.size() < sizeMin) {
-							sizeMin = hs.size();
-							indexMin = iCandidates;
-						}
-						iCandidates++;
-					}
+		static int next(Container[] cs, int from) {
+			Container driver = null;
+			for (Container c : cs) {
+				if (c.words == null && (driver == null || c.card < driver.card)) {
+					driver = c;
 				}
 			}
 			
-			// intersection of candidate sets
-			if (candidates.size() == 0) {
-				HashSet<Tuple> set = base.get(p.length - 1);
-				if (set.isEmpty()) {
-					return null;
-				} else {
-					return set.iterator().next();
-				}
-			} else {
-				for (Tuple t : candidates.get(indexMin)) {
-					boolean found = true;
-					for (int i = 0; i < candidates.size(); i++) {
-						if (i != indexMin && !candidates.get(i).contains(t)) {
-							found = false;
-							break;
-						}
+			if (driver == null) {
+				long mask = -1L << from;
+				for (int w = from >>> 6; w < 1 << 10; w++, mask = -1L) {
+					long word = mask;
+					for (int j = 0; j < cs.length && word != 0; j++) {
+						word &= cs[j].words[w];
 					}
-					if (found) {
-						if (toRemove) t.clear();
-						return t;
+					if (word != 0) {
+						return w << 6 | Long.numberOfTrailingZeros(word);
 					}
 				}
-				return null;
+				return -1;
+			}
+			
+			int k = Arrays.binarySearch(driver.array, 0, driver.card, 
+					(char) from);
+			for (k = (k < 0) ? -k - 1 : k; k < driver.card; k++) {
+				int low = driver.array[k];
+				boolean all = true;
+				for (int j = 0; j < cs.length && all; j++) {
+					all = cs[j] == driver || cs[j].contains(low);
+				}
+				if (all) return low;
 			}
+			return -1;
 		}
 	}
 	
 	/*
 	 * Abstract class that encapsulates String[] and will be inherited by Tuple
-	 * and Pattern.
+	 * and Pattern. The strings are copied unless the caller hands the array 
+	 * over (owned), i.e. nobody else can change it any more.
 	 */
 	private abstract static class StringArray {
 		private final String[] strArr;
 		
-		StringArray(String... strings) {
-			strArr = strings.clone();
+		StringArray(String[] strings, boolean owned) {
+			strArr = owned ? strings : strings.clone();
 		}
 		
 		public String[] getStrings() {
@@ -344,12 +2497,25 @@ public class LocalTupleSpace implements TupleSpace {
 		}
 	}
 
+	/*
+	 * A stored tuple. Its strings are the ones of the symbol table, so equal 
+	 * strings of different tuples are kept once, and ids holds their ids, 
+	 * which are released when the tuple is removed.
+	 */
 	private final static class Tuple extends StringArray {
 		
-		private ArrayList<HashSet<Tuple>> refs;
+		final int[] ids;
+		// slot in its TupleBase while stored, otherwise NONE
+		int slot = Symbols.NONE;
+		// with direct storage, tells the tuple from later ones in its slot
+		int stamp;
 		
-		Tuple(String... tuple) {
-			super(tuple);
+		Tuple(Symbols symbols, String... tuple) {
+			this(symbols, tuple, false);
+		}
+		
+		Tuple(Symbols symbols, String[] tuple, boolean owned) {
+			super(tuple, owned);
 			// check if tuple contains null
 			for (String s : tuple) {
 				if (s == null) {
@@ -357,19 +2523,28 @@ public class LocalTupleSpace implements TupleSpace {
 							Arrays.toString(tuple) + " contains null.");
 				}
 			}
-			refs = new ArrayList<HashSet<Tuple>>();
+			ids = symbols.intern(getStrings());
 		}
 		
-		public void referredBy(HashSet<Tuple> set) {
-			refs.add(set);
+		/*
+		 * A stored tuple decoded from direct storage, whose ids are interned
+		 * already.
+		 */
+		Tuple(String[] strings, int[] ids) {
+			super(strings, true);
+			this.ids = ids;
 		}
 		
-		public void clear() {
-			for (HashSet<Tuple> set : refs) {
-				if (!set.remove(this)) {
-					System.err.println("Oops! Wrong references.");
-				}
+		/*
+		 * Estimate the heap taken by the tuple: the objects, the arrays of 
+		 * strings and ids, and the strings as if they were not shared.
+		 */
+		long bytes() {
+			long b = 32 + 16 + 16;
+			for (String s : getStrings()) {
+				b += 8 + 4 + 40 + 2 * s.length();
 			}
+			return b;
 		}
 	}
 
@@ -377,20 +2552,51 @@ public class LocalTupleSpace implements TupleSpace {
 	 * Unlike tuples where any two tuples should not be equal even they have 
 	 * the same length and each string in them is the same, two such patterns 
 	 * should be considered as identical. Thus, we need override hashCode and 
-	 * equals function here.
+	 * equals function here. The hash depends on the position of every string 
+	 * and on the length, so that e.g. [a, null], [null, a] and [a, null, 
+	 * null] do not collide in a wait index, and is computed once.
 	 */
 	private final static class Pattern extends StringArray {
 		
+		// ids of the strings while the pattern is waiting, NONE for null
+		int[] ids;
+		// 0 until computed, like the hash of a String
+		private int hash;
+		
 		public Pattern(String... pattern) {
-			super(pattern);
+			this(pattern, false);
+		}
+		
+		/*
+		 * A pattern that is only searched for, and not filed as a waiter, 
+		 * is not kept beyond the call, so it can use the caller's array.
+		 */
+		public Pattern(String[] pattern, boolean owned) {
+			super(pattern, owned);
+		}
+		
+		/*
+		 * Give the pattern ids, which it keeps until released, so that 
+		 * tuples put later can be matched against it.
+		 */
+		public void intern(Symbols symbols) {
+			ids = symbols.intern(getStrings());
+		}
+		
+		public void release(Symbols symbols) {
+			symbols.release(ids);
+			ids = null;
 		}
 
+		/*
+		 * Match the tuple by comparing ids, which requires an interned 
+		 * pattern.
+		 */
 		public boolean matches(Tuple tuple) {
-			String[] ptn = getStrings();
-			String[] tpl = tuple.getStrings();
-			if (ptn.length != tpl.length) return false;
-			for (int i = 0; i < ptn.length; i++) {
-				if (ptn[i] != null && !ptn[i].equals(tpl[i])) return false;
+			int[] tpl = tuple.ids;
+			if (ids.length != tpl.length) return false;
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] != Symbols.NONE && ids[i] != tpl[i]) return false;
 			}
 			return true;
 		}
@@ -398,12 +2604,18 @@ public class LocalTupleSpace implements TupleSpace {
 		// next two override functions are used by HashMap class 
 		@Override
 		public int hashCode() {
-			int sum = 0;
-			String[] ptn = getStrings();
-			for (String s : ptn) {
-				if (s != null) sum += s.hashCode();
+			int h = hash;
+			if (h == 0) {
+				String[] ptn = getStrings();
+				h = ptn.length;
+				for (String s : ptn) {
+					h = 31 * h + (s == null ? 0 : s.hashCode());
+				}
+				// spread, and keep 0 for not computed
+				h ^= h >>> 16;
+				hash = (h == 0) ? 1 : h;
 			}
-			return sum;
+			return hash;
 		}
 		
 		@Override
@@ -412,7 +2624,8 @@ public class LocalTupleSpace implements TupleSpace {
 			if (obj == this) return true;
 			
 			Pattern other = (Pattern) obj;
-			return Arrays.equals(getStrings(), other.getStrings());
+			return hashCode() == other.hashCode() && 
+					Arrays.equals(getStrings(), other.getStrings());
 		}
 	}
 }
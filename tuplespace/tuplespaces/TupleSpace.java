@@ -3,7 +3,37 @@ package tuplespaces;
 public interface TupleSpace {
 	public void put(String... tuple);
 
+	/*
+	 * Like put, but the tuple is removed after ttl milliseconds unless it
+	 * has been taken before.
+	 */
+	public void put(long ttl, String... tuple);
+
 	public String[] get(String... pattern);
 
 	public String[] read(String... pattern);
+
+	/* Like get and read, but return null at once if no tuple matches. */
+	public String[] tryGet(String... pattern);
+
+	public String[] tryRead(String... pattern);
+
+	/*
+	 * Like get and read, but return null if no tuple matches within timeout
+	 * milliseconds or the calling thread is interrupted.
+	 */
+	public String[] get(long timeout, String... pattern);
+
+	public String[] read(long timeout, String... pattern);
+
+	/* Put all the tuples at once. */
+	public void putAll(String[]... tuples);
+
+	/*
+	 * Remove and return up to max tuples matching the pattern, or all of
+	 * them for readAll, without blocking. The result may be empty.
+	 */
+	public String[][] getAll(int max, String... pattern);
+
+	public String[][] readAll(String... pattern);
 }
@@ -0,0 +1,70 @@
+package tupletest;
+
+import java.util.concurrent.CompletableFuture;
+import junit.framework.*;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test checks getAsync and readAsync, which wait without a thread.
+ */
+public class AsyncTupleTest extends TestCase {
+	public static final int WAITERS = 10000;
+	AsyncTupleSpace t;
+
+	public void setUp() {
+		t = new LocalTupleSpace();
+	}
+
+	public void testAsyncTupleTest() throws Exception {
+		CompletableFuture<String[]> r1 = t.readAsync("Hello", null);
+		CompletableFuture<String[]> r2 = t.readAsync(null, "World");
+		CompletableFuture<String[]> g1 = t.getAsync("Hello", null);
+		CompletableFuture<String[]> g2 = t.getAsync("Hello", null);
+		assertFalse("readAsync completed without a tuple", r1.isDone());
+		assertFalse("getAsync completed without a tuple", g1.isDone());
+
+		t.put("Hello", "World");
+		assertTrue("put did not complete waiting readAsync", r1.isDone()
+				&& r2.isDone());
+		assertEquals("readAsync returned tuple other than the tuple that was put",
+				"World", r1.get()[1]);
+		assertTrue("put did not complete the first waiting getAsync", g1
+				.isDone());
+		assertFalse("put completed two getAsyncs with one tuple", g2.isDone());
+		assertNull("getAsync did not remove the tuple", t.tryRead("Hello", null));
+
+		assertTrue("could not cancel waiting getAsync", g2.cancel(false));
+		t.put("Hello", "Again");
+		assertNotNull("cancelled getAsync took the tuple", t.tryGet("Hello",
+				null));
+	}
+
+	public void testTimedAsync() throws Exception {
+		assertNull("timed getAsync returned a tuple from an empty space", t
+				.getAsync(50, "Hello", null).get());
+		CompletableFuture<String[]> f = t.getAsync(10000, "Hello", null);
+		t.put("Hello", "World");
+		assertNotNull("timed getAsync missed a tuple put while waiting", f
+				.get());
+	}
+
+	public void testManyWaiters() throws Exception {
+		int threads = Thread.activeCount();
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		CompletableFuture<String[]>[] f = new CompletableFuture[WAITERS];
+		for (int i = 0; i < WAITERS; i++)
+			f[i] = t.getAsync("Waiter", Integer.toString(i));
+		assertTrue("waiting getAsyncs started threads",
+				Thread.activeCount() <= threads + 1);
+		for (int i = WAITERS - 1; i >= 0; i--)
+			t.put("Waiter", Integer.toString(i));
+		for (int i = 0; i < WAITERS; i++)
+			assertEquals("getAsync got the wrong tuple", Integer.toString(i),
+					f[i].get()[1]);
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(AsyncTupleTest.class);
+	}
+}
@@ -0,0 +1,63 @@
+package tupletest;
+
+import junit.framework.*;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test checks the bulk operations putAll, getAll and readAll.
+ */
+public class BulkTupleTest extends TestCase {
+	TupleSpace t;
+
+	public void setUp() {
+		t = new LocalTupleSpace();
+	}
+
+	public void testBulkTupleTest() {
+		t.putAll(new String[] { "Hello", "World" }, new String[] { "Hello",
+				"Again" }, new String[] { "10", "true" }, new String[] { "5",
+				"true" }, new String[] { "Hello", "World", "Again" });
+
+		String[][] r = t.readAll("Hello", null);
+		assertEquals("readAll returned wrong number of tuples", 2, r.length);
+		for (String[] w : r) {
+			assertEquals("readAll returned tuple of different length", 2,
+					w.length);
+			assertEquals("readAll returned tuple that does not match",
+					"Hello", w[0]);
+		}
+		assertEquals("readAll removed tuples", 2, t.readAll("Hello", null).length);
+
+		r = t.getAll(1, null, "true");
+		assertEquals("getAll returned more tuples than asked", 1, r.length);
+		r = t.getAll(10, null, "true");
+		assertEquals("getAll did not return the remaining tuple", 1, r.length);
+		assertEquals("getAll did not remove the tuples", 0,
+				t.readAll(null, "true").length);
+
+		r = t.getAll(10, null, null, null);
+		assertEquals("getAll with only nulls returned wrong tuples", 1,
+				r.length);
+		assertNull("getAll with only nulls did not remove the tuple", t
+				.tryRead(null, null, null));
+	}
+
+	public void testPutAllWakesWaiters() throws InterruptedException {
+		Thread getter = new Thread() {
+			public void run() {
+				t.get("Hello", "World");
+				t.get(null, "Again");
+			}
+		};
+		getter.start();
+		t.putAll(new String[] { "Hello", "World" }, new String[] { "Hello",
+				"Again" });
+		getter.join(10000);
+		assertFalse("putAll did not wake up waiting get", getter.isAlive());
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(BulkTupleTest.class);
+	}
+}
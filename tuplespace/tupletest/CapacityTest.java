@@ -0,0 +1,169 @@
+package tupletest;
+
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import tuplespaces.LocalTupleSpace.WhenFull;
+import concassess.testee.*;
+
+/**
+ * This test bounds the tuple space and checks what puts do when it is full:
+ * reject the tuple, evict tuples of the evictable patterns, or block until
+ * a get makes room, and that a waiting get still takes a tuple put into a
+ * full space. It also checks the size and bytes the space reports, and that
+ * a blocked putAll waits for room for the whole batch without holding any.
+ */
+public class CapacityTest extends TestCase {
+	public static final int CAPACITY = 100;
+	LocalTupleSpace t;
+
+	public void setUp() {
+		t = new LocalTupleSpace();
+	}
+
+	/* Fill the space up to the capacity; it holds one tuple of its own. */
+	void fill() {
+		for (long i = t.size(); i < CAPACITY; i++)
+			t.put("Full", Long.toString(i));
+		assertEquals("size does not count the tuples put", CAPACITY, t.size());
+	}
+
+	public void testSizeAndBytes() {
+		long size = t.size(), bytes = t.bytes();
+		t.put("Counted", "tuple");
+		assertEquals("size did not grow by a put", size + 1, t.size());
+		assertTrue("bytes did not grow by a put", t.bytes() > bytes);
+		t.get("Counted", null);
+		assertEquals("size did not shrink by a get", size, t.size());
+		assertEquals("bytes did not shrink by a get", bytes, t.bytes());
+		t.putAll(new String[] { "Counted", "1" }, new String[] { "Counted",
+				"2" });
+		t.getAll(2, "Counted", null);
+		assertEquals("bulk operations miscounted", size, t.size());
+	}
+
+	public void testReject() throws Exception {
+		t.setCapacity(CAPACITY, Long.MAX_VALUE, WhenFull.REJECT);
+		fill();
+		try {
+			t.put("One", "more");
+			fail("full space accepted a tuple");
+		} catch (IllegalStateException e) {
+		}
+		assertNull("rejected tuple was stored", t.tryRead("One", null));
+		try {
+			t.putAll(new String[] { "One", "more" });
+			fail("full space accepted a tuple");
+		} catch (IllegalStateException e) {
+		}
+
+		CompletableFuture<String[]> g = t.getAsync("Handed", null);
+		t.put("Handed", "over");
+		assertTrue("waiting get missed a tuple put into a full space", g
+				.isDone());
+		assertEquals("tuple taken by a get was counted", CAPACITY, t.size());
+
+		t.tryGet("Full", null);
+		t.put("One", "more");
+		assertNotNull("tuple was not stored after making room", t.tryRead(
+				"One", null));
+	}
+
+	public void testBytes() {
+		long bytes = t.bytes();
+		t.setCapacity(Long.MAX_VALUE, bytes + 1000, WhenFull.REJECT);
+		try {
+			for (int i = 0; i < 1000; i++)
+				t.put("Bytes", Integer.toString(i));
+			fail("space exceeded its bytes");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue("space exceeded its bytes", t.bytes() <= bytes + 1000);
+		try {
+			t.put("Huge", new String(new char[1000]));
+			fail("space took a tuple larger than itself");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testEvict() {
+		t.setCapacity(CAPACITY, Long.MAX_VALUE, WhenFull.EVICT);
+		t.addEvictable("Old", null);
+		for (int i = 0; i < CAPACITY / 2; i++)
+			t.put("Old", Integer.toString(i));
+		fill();
+		for (int i = 0; i < CAPACITY / 2; i++)
+			t.put("New", Integer.toString(i));
+		assertEquals("evicting changed the size", CAPACITY, t.size());
+		assertNull("old tuples were not evicted", t.tryRead("Old", null));
+		assertEquals("tuples that are not evictable were evicted", CAPACITY
+				/ 2 - 1, t.readAll("Full", null).length);
+		try {
+			t.put("New", "more");
+			fail("space without evictable tuples accepted a tuple");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testBlock() throws InterruptedException {
+		t.setCapacity(CAPACITY, Long.MAX_VALUE, WhenFull.BLOCK);
+		fill();
+		Thread putter = new Thread() {
+			public void run() {
+				t.put("Blocked", "1");
+				t.put("Blocked", "2");
+			}
+		};
+		putter.start();
+		Thread.sleep(100);
+		assertTrue("put into a full space did not block", putter.isAlive());
+		assertNotNull("get failed", t.tryGet("Full", null));
+		/* The second put goes to this get although the space is full. */
+		assertNotNull("blocked put did not go on after a get", t.get(
+				"Blocked", "2"));
+		putter.join(1000);
+		assertFalse("blocked put did not go on", putter.isAlive());
+		assertNotNull("blocked tuple was lost", t.tryRead("Blocked", "1"));
+	}
+
+	public void testBlockPutAll() throws InterruptedException {
+		t.setCapacity(CAPACITY, Long.MAX_VALUE, WhenFull.BLOCK);
+		String[][] tooMany = new String[CAPACITY + 1][];
+		for (int i = 0; i < tooMany.length; i++)
+			tooMany[i] = new String[] { "TooMany", Integer.toString(i) };
+		long size = t.size();
+		try {
+			t.putAll(tooMany);
+			fail("putAll larger than the space did not fail");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals("refused putAll kept room", size, t.size());
+
+		fill();
+		assertNotNull("get failed", t.tryGet("Full", null));
+		Thread putter = new Thread() {
+			public void run() {
+				t.putAll(new String[] { "Batch", "1" }, new String[] {
+						"Batch", "2" });
+			}
+		};
+		putter.start();
+		Thread.sleep(100);
+		assertTrue("putAll into a space with too little room did not block",
+				putter.isAlive());
+		/* The blocked putAll holds none of the room left. */
+		t.put("Single", "1");
+		assertNotNull("get failed", t.tryGet("Full", null));
+		assertNotNull("get failed", t.tryGet("Full", null));
+		putter.join(1000);
+		assertFalse("blocked putAll did not go on", putter.isAlive());
+		assertEquals("blocked putAll lost tuples", 2, t.readAll("Batch", null)
+				.length);
+		assertEquals("size does not count the tuples put", CAPACITY, t.size());
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(CapacityTest.class);
+	}
+}
@@ -0,0 +1,102 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tupleserver.*;
+import concassess.testee.*;
+import chat.ChatListener;
+import chat.ChatServer;
+
+/**
+ * This test checks that getNextMessages returns the messages written already
+ * in order and up to the limit, and waits when there is none. It then lets
+ * listeners behind a TupleProxy catch up with a full buffer one message and
+ * a batch at a time, and prints both rates on standard error.
+ */
+public class ChatBatchReadTest extends TestCase {
+	public static final int ROWS = 1000;
+
+	public void testBatches() throws InterruptedException {
+		final ChatServer cs = new ChatServer(
+				new tuplespaces.LocalTupleSpace(), 10, new String[] { "Pik" });
+		ChatListener l = cs.openConnection("Pik");
+		for (int i = 0; i < 8; i++)
+			cs.writeMessage("Pik", "m" + i);
+
+		String[] got = l.getNextMessages(3);
+		assertEquals("limit was not kept", 3, got.length);
+		assertEquals("messages out of order", "m0", got[0]);
+		assertEquals("messages out of order", "m2", got[2]);
+		assertEquals("single read is out of step", "m3", l.getNextMessage());
+		got = l.getNextMessages(100);
+		assertEquals("available messages were not all returned", 4,
+				got.length);
+		assertEquals("messages out of order", "m7", got[3]);
+
+		/* The buffer can be overtaken now only if the cursor was moved. */
+		for (int i = 8; i < 18; i++)
+			cs.writeMessage("Pik", "m" + i);
+		assertEquals("full buffer was not returned", 10, l.getNextMessages(
+				100).length);
+
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				cs.writeMessage("Pik", "late");
+			}
+		};
+		writer.start();
+		got = l.getNextMessages(100);
+		assertEquals("did not wait for a message", "late", got[0]);
+		writer.join();
+		l.closeConnection();
+	}
+
+	public void testCatchUpThroughProxy() {
+		TupleServer server = Servers.start(0);
+		try {
+			catchUp(server);
+		} finally {
+			server.close();
+		}
+	}
+
+	private void catchUp(TupleServer server) {
+		ChatServer cs = new ChatServer(new TupleProxy("localhost", server
+				.getPort()), ROWS, new String[] { "Pik" });
+		ChatServer single = new ChatServer(new TupleProxy("localhost", server
+				.getPort()));
+		ChatServer batched = new ChatServer(new TupleProxy("localhost",
+				server.getPort()));
+		ChatListener one = single.openConnection("Pik");
+		ChatListener many = batched.openConnection("Pik");
+		for (int i = 0; i < ROWS; i++)
+			cs.writeMessage("Pik", "Pik test " + i);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ROWS; i++)
+			assertEquals("message out of order", "Pik test " + i, one
+					.getNextMessage());
+		long singleNs = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int read = 0;
+		while (read < ROWS)
+			for (String m : many.getNextMessages(ROWS))
+				assertEquals("message out of order", "Pik test " + read++, m);
+		long batchedNs = System.nanoTime() - start;
+
+		System.err.println("Catching up " + ROWS + " messages through a proxy: "
+				+ ROWS * 1000000000L / Math.max(singleNs, 1)
+				+ " per second one at a time, " + ROWS * 1000000000L
+				/ Math.max(batchedNs, 1) + " per second in batches");
+		one.closeConnection();
+		many.closeConnection();
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ChatBatchReadTest.class);
+	}
+}
@@ -0,0 +1,94 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+import chat.ChatListener;
+import chat.ChatServer;
+
+/**
+ * This test writes to a channel with a deep buffer, first alone and then
+ * while other clients keep joining and leaving it, checks that the joining
+ * clients start at the oldest buffered message, and prints the latency of
+ * the writes in both cases on standard error.
+ */
+public class ChatJoinStormTest extends TestCase {
+	public static final int ROWS = 1000, JOINERS = 4, MESSAGES = 5000;
+
+	private TupleSpace space;
+	private ChatServer cs;
+	private volatile boolean writing;
+	private int written;
+
+	protected void setUp() {
+		space = new LocalTupleSpace();
+		cs = new ChatServer(space, ROWS, new String[] { "Pik" });
+		/* Fill the buffer, so that every join has all rows to cover. */
+		while (written < ROWS)
+			cs.writeMessage("Pik", "Pik test " + written++);
+	}
+
+	public void testWriterLatency() throws Throwable {
+		write("alone");
+
+		final Throwable[] failed = new Throwable[1];
+		Thread[] joiners = new Thread[JOINERS];
+		writing = true;
+		for (int i = 0; i < JOINERS; i++) {
+			joiners[i] = new Thread() {
+				public void run() {
+					try {
+						while (writing) {
+							/* Message n is written in position n. */
+							int before = oldest();
+							ChatListener l = cs.openConnection("Pik");
+							int after = oldest();
+							int first = Integer.parseInt(l.getNextMessage()
+									.substring("Pik test ".length()));
+							assertTrue("joined at " + first + ", not between "
+									+ before + " and " + after,
+									first >= before && first <= after);
+							l.closeConnection();
+						}
+					} catch (Throwable t) {
+						failed[0] = t;
+					}
+				}
+			};
+			joiners[i].start();
+		}
+		try {
+			write("with " + JOINERS + " clients joining");
+		} finally {
+			writing = false;
+			for (Thread t : joiners)
+				t.join();
+		}
+		if (failed[0] != null)
+			throw failed[0];
+	}
+
+	/* The oldest buffered position, at which a client joining now starts. */
+	private int oldest() {
+		int next = Integer.parseInt(space.read("Pik", ChatServer.NEXTWRITE,
+				null)[2]);
+		return Math.max(next - ROWS, 0);
+	}
+
+	private void write(String load) {
+		long total = 0, max = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			long start = System.nanoTime();
+			cs.writeMessage("Pik", "Pik test " + written++);
+			long ns = System.nanoTime() - start;
+			total += ns;
+			max = Math.max(max, ns);
+		}
+		System.err.println("Writes " + load + ": " + total / MESSAGES
+				/ 1000 + " us on average, " + max / 1000 + " us at most");
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ChatJoinStormTest.class);
+	}
+}
@@ -0,0 +1,55 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import concassess.testee.*;
+import chat.ChatListener;
+import chat.ChatServer;
+
+/**
+ * This test lets a client that has read nothing of a full, deep buffer leave
+ * the channel while a writer waits for it, checks that the writer goes on
+ * and that another client still gets every message, and prints how long
+ * leaving took on standard error.
+ */
+public class ChatLeaveTest extends TestCase {
+	public static final int ROWS = 1000;
+
+	public void testLeaveWithBacklog() throws Throwable {
+		final ChatServer cs = new ChatServer(
+				new tuplespaces.LocalTupleSpace(), ROWS, new String[] { "Pik" });
+		ChatListener slow = cs.openConnection("Pik");
+		ChatListener other = cs.openConnection("Pik");
+		for (int i = 0; i < ROWS; i++)
+			cs.writeMessage("Pik", "Pik test " + i);
+		for (int i = 0; i < ROWS; i++)
+			assertEquals("message out of order", "Pik test " + i, other
+					.getNextMessage());
+
+		/* The buffer is full and slow is behind, so this writer waits. */
+		Thread writer = new Thread() {
+			public void run() {
+				cs.writeMessage("Pik", "Pik test " + ROWS);
+			}
+		};
+		writer.start();
+		writer.join(200);
+		assertTrue("writer did not wait for the slow client", writer
+				.isAlive());
+
+		long start = System.nanoTime();
+		slow.closeConnection();
+		long us = (System.nanoTime() - start) / 1000;
+		writer.join(10000);
+		assertFalse("writer was not woken by the leaving client", writer
+				.isAlive());
+		assertEquals("message after leave was lost", "Pik test " + ROWS,
+				other.getNextMessage());
+		System.err.println("Leaving with " + ROWS + " unread messages took "
+				+ us + " us");
+		other.closeConnection();
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ChatLeaveTest.class);
+	}
+}
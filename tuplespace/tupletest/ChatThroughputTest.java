@@ -0,0 +1,50 @@
+package tupletest;
+
+import concassess.testee.*;
+import junit.framework.TestCase;
+import net.sourceforge.groboutils.junit.v1.TestRunnable;
+import net.sourceforge.groboutils.junit.v1.MultiThreadedTestRunner;
+import chat.ChatServer;
+
+/**
+ * This test floods a single channel from several writers while listeners
+ * follow it, checks that every listener gets every message in the order of
+ * each writer, and prints the messages written per second on standard error.
+ */
+public class ChatThroughputTest extends TestCase {
+	public static final int WRITERS = 8, LISTENERS = 4, MESSAGES = 2000;
+
+	private ChatServer cs;
+
+	protected void setUp() {
+		cs = new ChatServer(new tuplespaces.LocalTupleSpace(), 10,
+				new String[] { "Pik" });
+	}
+
+	public void testChannelThroughput() throws Throwable {
+		TestRunnable tct[] = new TestRunnable[WRITERS + LISTENERS];
+		for (int i = 0; i < WRITERS; i++) {
+			final int id = i;
+			tct[i] = new TestRunnable() {
+				public void runTest() {
+					for (int j = 0; j < MESSAGES; j++)
+						cs.writeMessage("Pik", "Pik test " + (id * MESSAGES + j));
+				}
+			};
+		}
+		for (int i = 0; i < LISTENERS; i++)
+			tct[WRITERS + i] = new SpamListener("Pik", cs, MESSAGES, WRITERS,
+					null);
+
+		long start = System.nanoTime();
+		new MultiThreadedTestRunner(tct).runTestRunnables();
+		long ms = Math.max((System.nanoTime() - start) / 1000000, 1);
+		System.err.println(WRITERS * MESSAGES * 1000L / ms
+				+ " messages per second on one channel, " + LISTENERS
+				+ " listeners");
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ChatThroughputTest.class);
+	}
+}
@@ -0,0 +1,88 @@
+package tupletest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test fills a space that keeps its tuples on the heap and one that
+ * keeps them off the heap with the same chat history, checks that both find
+ * the same tuples, and prints the heap used per tuple and the pause of a
+ * full collection with each on standard error. The other tests run against
+ * direct storage with -Dtuplespaces.direct=true.
+ */
+public class DirectStorageTest extends TestCase {
+	/* Raise this (and -Xmx) to see the pauses at millions of tuples. */
+	public static final int TUPLES = 500000, CHANNELS = 10;
+
+	public void testSameTuples() {
+		TupleSpace t = new LocalTupleSpace(LocalTupleSpace.STRIPES, true,
+				false, true);
+		t.put("Hello", "Wårld", "世界");
+		assertEquals("wide string was garbled", "世界", t.read(
+				"Hello", null, null)[2]);
+		assertNotNull("Latin-1 string was garbled", t.tryGet(null, "Wårld",
+				null));
+		for (int i = 0; i < 1000; i++)
+			t.put("msg", Integer.toString(i % 7), "text" + i);
+		assertEquals("readAll missed tuples", 143, t.readAll("msg", "0",
+				null).length);
+		assertEquals("getAll took too many tuples", 100, t.getAll(100,
+				"msg", "0", null).length);
+		assertEquals("removed tuples were found", 43, t.readAll("msg", "0",
+				null).length);
+		String[] got = t.get("msg", "3", "text3");
+		assertEquals("decoded tuple differs", "text3", got[2]);
+		assertNull("taken tuple was found", t.tryRead("msg", "3", "text3"));
+		/* The freed blocks are reused for strings of other lengths too. */
+		t.put("msg", "3", "text3 again");
+		assertNotNull("tuple in reused block was lost", t.tryRead("msg",
+				"3", "text3 again"));
+	}
+
+	public void testCollectionPause() {
+		fill(false);
+		fill(true);
+	}
+
+	private void fill(boolean direct) {
+		TupleSpace t = new LocalTupleSpace(LocalTupleSpace.STRIPES, true,
+				false, direct);
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long before = rt.totalMemory() - rt.freeMemory();
+		for (int i = 0; i < TUPLES; i++)
+			t.put("msg", "Channel" + (i % CHANNELS), Integer.toString(i),
+					"Message number " + i + " of the chat history");
+		long pause = collect();
+		long after = rt.totalMemory() - rt.freeMemory();
+		System.err.println((direct ? "Direct: " : "Heap:   ") + "about "
+				+ (after - before) / TUPLES + " heap bytes per tuple, "
+				+ pause + " ms full collection");
+
+		assertEquals("readAll missed tuples of a channel", TUPLES / CHANNELS,
+				t.readAll("msg", "Channel3", null, null).length);
+		assertNotNull("tuple was not found", t.tryGet("msg", "Channel7",
+				"17", null));
+	}
+
+	/* Collects fully and returns the time the collectors took for it. */
+	private static long collect() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			time -= gc.getCollectionTime();
+		System.gc();
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			time += gc.getCollectionTime();
+		return time;
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(DirectStorageTest.class);
+	}
+}
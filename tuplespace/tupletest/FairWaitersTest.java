@@ -0,0 +1,88 @@
+package tupletest;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test checks that a fair tuple space hands tuples to waiting gets of
+ * overlapping patterns in arrival order, and measures the wait latency of
+ * many getters of overlapping patterns fed by one putter, in a fair and an
+ * unfair space. The percentiles are printed on standard error.
+ */
+public class FairWaitersTest extends TestCase {
+	public static final int GETTERS = 12, ROUNDS = 2000;
+	static final String[][] PATTERNS = { { "Hello", null, null },
+			{ null, "Test", null }, { "Hello", "Test", null },
+			{ null, null, null } };
+
+	public void testArrivalOrder() throws Exception {
+		AsyncTupleSpace t = new LocalTupleSpace(LocalTupleSpace.STRIPES, true,
+				true);
+		String[][] patterns = { { "a", null, null }, { null, "x", null },
+				{ "a", "x", null }, { "a", null, null }, { null, null, null } };
+		CompletableFuture<?>[] got = new CompletableFuture<?>[patterns.length];
+		for (int i = 0; i < patterns.length; i++)
+			got[i] = t.getAsync(patterns[i]);
+		for (int i = 0; i < patterns.length; i++) {
+			t.put("a", "x", Integer.toString(i));
+			for (int j = 0; j < patterns.length; j++)
+				assertEquals("get of " + Arrays.toString(patterns[j])
+						+ " served out of order", j <= i, got[j].isDone());
+		}
+	}
+
+	/* Returns the wait latencies of all gets in microseconds, sorted. */
+	static long[] latencies(final TupleSpace t) throws InterruptedException {
+		final long[][] waited = new long[GETTERS][ROUNDS];
+		Thread[] getters = new Thread[GETTERS];
+		for (int i = 0; i < GETTERS; i++) {
+			final int g = i;
+			getters[i] = new Thread() {
+				public void run() {
+					for (int r = 0; r < ROUNDS; r++) {
+						long start = System.nanoTime();
+						t.get(PATTERNS[(g + r) % PATTERNS.length]);
+						waited[g][r] = (System.nanoTime() - start) / 1000;
+					}
+				}
+			};
+			getters[i].start();
+		}
+		for (int i = 0; i < GETTERS * ROUNDS; i++) {
+			t.put("Hello", "Test", Integer.toString(i));
+			if (i % 64 == 0)
+				Thread.yield();
+		}
+		long[] all = new long[GETTERS * ROUNDS];
+		for (int i = 0; i < GETTERS; i++) {
+			getters[i].join(60000);
+			assertFalse("a getter starved", getters[i].isAlive());
+			System.arraycopy(waited[i], 0, all, i * ROUNDS, ROUNDS);
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	static String percentiles(long[] l) {
+		return "p50 " + l[l.length / 2] + " us, p99 " + l[l.length * 99 / 100]
+				+ " us, max " + l[l.length - 1] + " us";
+	}
+
+	public void testWaitLatency() throws InterruptedException {
+		for (int i = 0; i < 2; i++) {
+			boolean fair = (i == 1);
+			long[] l = latencies(new LocalTupleSpace(LocalTupleSpace.STRIPES,
+					true, fair));
+			System.err.println((fair ? "Fair" : "Unfair") + " waiters: "
+					+ percentiles(l));
+		}
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(FairWaitersTest.class);
+	}
+}
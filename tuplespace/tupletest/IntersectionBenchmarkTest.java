@@ -0,0 +1,106 @@
+package tupletest;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test fills two tuple spaces with the same skewed chat history, one
+ * intersecting its index sets as bitmaps and one by probing hash sets, and
+ * runs the same multi-field patterns against both. A hot channel holds a
+ * third of the history, the common kind most of it, but few tuples have
+ * both, so both candidate sets are large and their intersection small. The
+ * results must agree; the times are printed on standard error.
+ */
+public class IntersectionBenchmarkTest extends TestCase {
+	public static final int TUPLES = 150000, CHANNELS = 50, ROUNDS = 20;
+	static final String[] KINDS = { "msg", "join", "part", "topic" };
+
+	/* c0 a third of the time, the other channels the lower the likelier. */
+	static String channel(Random r) {
+		if (r.nextInt(3) == 0)
+			return "c0";
+		return "c" + (1 + (int) Math.floor(Math.pow(CHANNELS - 1,
+				r.nextDouble())));
+	}
+
+	/* Almost everything is a msg, except in c0, which is mostly joins. */
+	static String kind(Random r, String channel) {
+		if (channel.equals("c0"))
+			return (r.nextInt(100) == 0) ? "msg" : "join";
+		return (r.nextInt(20) == 0) ? KINDS[1 + r.nextInt(3)] : "msg";
+	}
+
+	static TupleSpace fill(boolean bitmaps) {
+		TupleSpace t = new LocalTupleSpace(LocalTupleSpace.STRIPES, bitmaps);
+		Random r = new Random(42);
+		for (int i = 0; i < TUPLES; i++) {
+			String c = channel(r);
+			t.put("hist", c, kind(r, c), Integer.toString(i));
+		}
+		return t;
+	}
+
+	static final String[][] PATTERNS = {
+			{ "hist", "c0", "msg", null },
+			{ "hist", "c1", "join", null },
+			{ "hist", "c0", "topic", null },
+			{ "hist", null, "part", null } };
+
+	static String[][] sorted(String[][] tuples) {
+		Arrays.sort(tuples, new Comparator<String[]>() {
+			public int compare(String[] a, String[] b) {
+				return Integer.parseInt(a[3]) - Integer.parseInt(b[3]);
+			}
+		});
+		return tuples;
+	}
+
+	static long time(TupleSpace t) {
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			for (String[] p : PATTERNS) {
+				t.readAll(p);
+				t.tryRead(p);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public void testSkewedIntersection() {
+		TupleSpace probing = fill(false), and = fill(true);
+		for (String[] p : PATTERNS) {
+			String[][] expected = sorted(probing.readAll(p));
+			String[][] found = sorted(and.readAll(p));
+			assertEquals("bitmaps found other tuples for "
+					+ Arrays.toString(p), expected.length, found.length);
+			for (int i = 0; i < found.length; i++)
+				assertTrue("bitmaps found other tuples for "
+						+ Arrays.toString(p), Arrays.equals(expected[i],
+						found[i]));
+		}
+
+		/* Warm up both before timing. */
+		time(probing);
+		time(and);
+		long hash = time(probing), bits = time(and);
+		System.err.println("Nested-loop intersection: " + hash / 1000000
+				+ " ms, bitmap intersection: " + bits / 1000000 + " ms");
+
+		/* Taking tuples shrinks the sets back below the bitmap size. */
+		assertEquals("getAll took other tuples", probing.readAll(PATTERNS[0])
+				.length, and.getAll(Integer.MAX_VALUE, PATTERNS[0]).length);
+		assertNull("taken tuple was found", and.tryRead(PATTERNS[0]));
+		assertEquals("other channels were touched", probing.readAll("hist",
+				"c1", null, null).length, and.readAll("hist", "c1", null, null)
+				.length);
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(IntersectionBenchmarkTest.class);
+	}
+}
@@ -0,0 +1,165 @@
+package tupletest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test logs the changes of a tuple space with a WriteAheadLog and
+ * checks that a fresh space recovered from the log holds the same tuples,
+ * also once segments have been folded into a snapshot and when the log ends
+ * with a torn record, and that a server acknowledges puts in order.
+ */
+public class JournalTest extends TestCase {
+	public static final int TUPLES = 2000;
+	File dir;
+
+	public void setUp() throws IOException {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+	}
+
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		for (File f : files == null ? new File[0] : files)
+			f.delete();
+		dir.delete();
+	}
+
+	private LocalTupleSpace recover(WriteAheadLog log) {
+		LocalTupleSpace t = new LocalTupleSpace();
+		log.recover(t);
+		return t;
+	}
+
+	public void testRecover() throws InterruptedException {
+		WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.Sync.ALWAYS);
+		LocalTupleSpace t = recover(log);
+		t.put("Kept", "a");
+		t.put("Taken", "b");
+		t.put("Kept", "a");
+		assertNotNull("tuple was not found", t.tryGet("Taken", null));
+		assertNotNull("initial tuple was not found", t.tryGet("chs", null));
+		t.put(60000, "Lease", "long");
+		t.put(50, "Lease", "short");
+		Thread.sleep(200);
+		log.close();
+
+		log = new WriteAheadLog(dir, WriteAheadLog.Sync.ALWAYS);
+		t = recover(log);
+		assertEquals("stored tuples were lost", 2, t.readAll("Kept", "a").length);
+		assertNull("taken tuple came back", t.tryRead("Taken", null));
+		assertNull("removed initial tuple came back", t.tryRead("chs", null));
+		assertNotNull("leased tuple was lost", t.tryRead("Lease", "long"));
+		assertNull("expired tuple came back", t.tryRead("Lease", "short"));
+		log.close();
+	}
+
+	public void testSnapshot() {
+		/* Small segments, so that most of them are folded into snapshots. */
+		WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.Sync.NEVER,
+				1, 4096);
+		LocalTupleSpace t = recover(log);
+		for (int i = 0; i < TUPLES; i++)
+			t.put("Snapshot", Integer.toString(i));
+		for (int i = 0; i < TUPLES; i += 2)
+			assertNotNull("tuple was not found", t.tryGet("Snapshot", Integer
+					.toString(i)));
+		t.put(60000, "Lease", "long");
+		log.close();
+		assertTrue("no snapshot was written", new File(dir, "snapshot")
+				.exists());
+
+		for (int round = 0; round < 2; round++) {
+			log = new WriteAheadLog(dir, WriteAheadLog.Sync.NEVER, 1, 4096);
+			t = recover(log);
+			assertEquals("recovered space differs", TUPLES / 2, t.readAll(
+					"Snapshot", null).length);
+			for (int i = 1; i < TUPLES; i += 2)
+				assertNotNull("tuple was lost", t.tryRead("Snapshot", Integer
+						.toString(i)));
+			assertNotNull("leased tuple was lost", t.tryRead("Lease", "long"));
+			assertNotNull("initial tuple was lost", t.tryRead("chs", null));
+			log.close();
+		}
+	}
+
+	public void testTornRecord() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.Sync.ALWAYS);
+		LocalTupleSpace t = recover(log);
+		t.put("Torn", "whole");
+		log.close();
+		/* A record of 100 bytes of which only a few were written. */
+		FileOutputStream out = new FileOutputStream(new File(dir, "log.0"),
+				true);
+		out.write(new byte[] { 100, 1, 2, 3 });
+		out.close();
+
+		log = new WriteAheadLog(dir, WriteAheadLog.Sync.ALWAYS);
+		t = recover(log);
+		assertNotNull("tuple before torn record was lost", t.tryRead("Torn",
+				"whole"));
+		t.put("Torn", "after");
+		log.close();
+
+		log = new WriteAheadLog(dir, WriteAheadLog.Sync.ALWAYS);
+		t = recover(log);
+		assertEquals("tuples were lost", 2, t.readAll("Torn", null).length);
+		log.close();
+	}
+
+	public void testThroughServer() {
+		TupleServer ts = new TupleServer();
+		ts.openJournal(dir, WriteAheadLog.Sync.ALWAYS);
+		Servers.start(ts, 0);
+		try {
+			TupleProxy p = new TupleProxy("localhost", ts.getPort());
+			p.put("Server", "durable");
+			/* Acknowledged, so it is on disk already. */
+			WriteAheadLog log = new WriteAheadLog(dir,
+					WriteAheadLog.Sync.NEVER);
+			LocalTupleSpace t = recover(log);
+			assertNotNull("acknowledged tuple was not logged", t.tryRead(
+					"Server", "durable"));
+			log.close();
+		} finally {
+			ts.close();
+		}
+	}
+
+	public void testAcksInOrder() throws InterruptedException {
+		TupleServer ts = new TupleServer();
+		ts.openJournal(dir, WriteAheadLog.Sync.ALWAYS);
+		Servers.start(ts, 0);
+		try {
+			TupleProxy getter = new TupleProxy("localhost", ts.getPort());
+			for (int i = 0; i < TUPLES; i++)
+				getter.getAsync("Handed", Integer.toString(i));
+			TupleProxy putter = new TupleProxy("localhost", ts.getPort());
+			putter.setPipelined(true);
+			/* Handed tuples leave no record; their commits are done at once. */
+			for (int i = 0; i < TUPLES; i++) {
+				putter.put("Logged", Integer.toString(i));
+				putter.put("Handed", Integer.toString(i));
+			}
+			putter.flush();
+			WriteAheadLog log = new WriteAheadLog(dir,
+					WriteAheadLog.Sync.NEVER);
+			LocalTupleSpace t = recover(log);
+			assertEquals("put was acknowledged before it was logged", TUPLES,
+					t.readAll("Logged", null).length);
+			log.close();
+		} finally {
+			ts.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(JournalTest.class);
+	}
+}
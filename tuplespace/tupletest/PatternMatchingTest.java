@@ -1,5 +1,8 @@
 package tupletest;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
 import junit.framework.*;
 import tuplespaces.*;
 import concassess.testee.*;
@@ -41,6 +44,28 @@ public class PatternMatchingTest extends TestCase {
 						+ (new Integer(w2[0]).intValue()));
 	}
 
+	/*
+	 * Patterns with the same strings at other positions or of other lengths
+	 * must wait apart, also while all of them are waiting at once.
+	 */
+	public void testPositionAndArity() throws Exception {
+		AsyncTupleSpace t = new LocalTupleSpace();
+		String[][] patterns = { { "a", null }, { null, "a" },
+				{ "a", null, null }, { null, null, "a" } };
+		String[][] tuples = { { "a", "x" }, { "y", "a" }, { "a", "x", "y" },
+				{ "x", "y", "a" } };
+		CompletableFuture<?>[] got = new CompletableFuture<?>[patterns.length];
+		for (int i = patterns.length - 1; i >= 0; i--)
+			got[i] = t.getAsync(patterns[i]);
+		for (int i = 0; i < tuples.length; i++) {
+			t.put(tuples[i]);
+			assertTrue("waiter of " + Arrays.toString(patterns[i])
+					+ " got other tuple", Arrays.equals(tuples[i],
+					(String[]) got[i].get()));
+		}
+		assertNull("tuple was given twice", t.tryRead("a", null));
+	}
+
 	public static void main(String[] args) {
 		new ConcTestRunner(args).start(PatternMatchingTest.class);
 	}
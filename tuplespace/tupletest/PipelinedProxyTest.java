@@ -0,0 +1,48 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test puts tuples through a pipelined TupleProxy and checks that they
+ * arrive in order and that flush waits for all of them.
+ */
+public class PipelinedProxyTest extends TestCase {
+	public static final int PUTS = 2000;
+	TupleServer ts;
+
+	public void setUp() {
+		ts = Servers.start(0);
+	}
+
+	public void tearDown() {
+		ts.close();
+	}
+
+	public void testFlush() {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort());
+		p.setPipelined(true);
+		for (int i = 0; i < PUTS; i++)
+			p.put("Pipelined", Integer.toString(i));
+		p.flush();
+		TupleProxy other = new TupleProxy("localhost", ts.getPort());
+		assertEquals("flush returned before all puts were done", PUTS,
+				other.readAll("Pipelined", null).length);
+	}
+
+	public void testOwnPutsVisible() {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort());
+		p.setPipelined(true);
+		for (int i = 0; i < PUTS; i++) {
+			p.put("Own", Integer.toString(i));
+			assertNotNull("get through the same proxy missed a pipelined put",
+					p.tryGet("Own", Integer.toString(i)));
+		}
+		p.flush();
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(PipelinedProxyTest.class);
+	}
+}
@@ -0,0 +1,166 @@
+package tupletest;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test checks that TupleProxy hands each answer to the request it
+ * belongs to, whatever the order the answers come in, and fails the requests
+ * still waiting when the connection or the server is closed. It also checks
+ * that a get that is cancelled, or timed and interrupted, is withdrawn
+ * without losing a tuple, and that the server drops a connection that sends
+ * a frame too long to read or an unknown command.
+ */
+public class ProxyRequestTest extends TestCase {
+	public static final int REQUESTS = 500;
+	TupleServer ts;
+
+	public void setUp() {
+		ts = Servers.start(0);
+	}
+
+	public void tearDown() {
+		ts.close();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void testAnswersOutOfOrder() {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort());
+		CompletableFuture<String[]>[] f = new CompletableFuture[REQUESTS];
+		for (int i = 0; i < REQUESTS; i++)
+			f[i] = p.getAsync("Request", Integer.toString(i), null);
+		for (int i = REQUESTS - 1; i >= 0; i--)
+			p.put("Request", Integer.toString(i), "answer" + i);
+		for (int i = 0; i < REQUESTS; i++)
+			assertEquals("answer was given to another request", "answer" + i,
+					f[i].join()[2]);
+	}
+
+	public void testConnectionLost() throws Exception {
+		ServerSocket ss = new ServerSocket(0);
+		TupleProxy p = new TupleProxy(new Socket("localhost", ss
+				.getLocalPort()), 1);
+		Socket s = ss.accept();
+		CompletableFuture<String[]> f = p.getAsync("Lost");
+		s.close();
+		ss.close();
+		try {
+			f.join();
+			fail("request completed without an answer");
+		} catch (CompletionException e) {
+		}
+	}
+
+	public void testCancel() throws Exception {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort());
+		CompletableFuture<String[]> f = p.getAsync("Cancelled", null);
+		assertTrue("get could not be cancelled", f.cancel(false));
+		p.put("Cancelled", "kept");
+		assertNotNull("cancelled get took the tuple", p.tryGet("Cancelled",
+				null));
+
+		/* A tuple taken for a get cancelled too late is put back. */
+		TupleProxy putter = new TupleProxy("localhost", ts.getPort());
+		for (int i = 0; i < REQUESTS; i++) {
+			String n = Integer.toString(i);
+			f = p.getAsync("Raced", n);
+			putter.put("Raced", n);
+			if (f.cancel(false)) {
+				assertNotNull("tuple of a cancelled get was lost", p.get(1000,
+						"Raced", n));
+			} else
+				assertEquals("get got the wrong tuple", n, f.join()[1]);
+		}
+	}
+
+	public void testServerClosed() throws Exception {
+		for (int io = 0; io < 2; io++) {
+			TupleServer server = Servers.start(io);
+			TupleProxy p = new TupleProxy("localhost", server.getPort());
+			CompletableFuture<String[]> f = p.getAsync("Closed");
+			server.close();
+			try {
+				f.get(10, TimeUnit.SECONDS);
+				fail("request completed by a closed server");
+			} catch (ExecutionException e) {
+			}
+			try {
+				new Socket("localhost", server.getPort()).close();
+				fail("closed server still accepts connections");
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public void testInterruptedTimedGet() throws Exception {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort());
+		final Thread caller = Thread.currentThread();
+		Thread interrupter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				caller.interrupt();
+			}
+		};
+		interrupter.start();
+		long start = System.currentTimeMillis();
+		assertNull("interrupted timed get returned a tuple", p.get(60000,
+				"Interrupted", null));
+		assertTrue("interrupted timed get kept waiting",
+				System.currentTimeMillis() - start < 10000);
+		assertTrue("interrupt status of timed get was cleared", Thread
+				.interrupted());
+		interrupter.join();
+		p.put("Interrupted", "kept");
+		assertNotNull("interrupted get took the tuple", p.tryGet(
+				"Interrupted", null));
+	}
+
+	public void testBadFrameLength() throws Exception {
+		int connections = ts.getStats().getConnections();
+		Socket s = new Socket("localhost", ts.getPort());
+		s.getOutputStream().write(new byte[] { 'V', 2 });
+		assertEquals("version was not agreed", 2, s.getInputStream().read());
+		/* A frame length of 2^32 - 1, far beyond MAX_FRAME. */
+		s.getOutputStream().write(
+				new byte[] { -1, -1, -1, -1, 0x0f, 'P', 0 });
+		for (int i = 0; i < 100
+				&& ts.getStats().getConnections() > connections; i++)
+			Thread.sleep(20);
+		assertEquals("connection with a bad frame was not closed",
+				connections, ts.getStats().getConnections());
+		s.close();
+	}
+
+	public void testUnknownCommand() throws Exception {
+		int connections = ts.getStats().getConnections();
+		Socket s = new Socket("localhost", ts.getPort());
+		s.setSoTimeout(10000);
+		s.getOutputStream().write(new byte[] { 'V', 2 });
+		assertEquals("version was not agreed", 2, s.getInputStream().read());
+		/* A frame of 3 bytes: command Z, id 0 and an empty tuple. */
+		s.getOutputStream().write(new byte[] { 3, 'Z', 0, 0 });
+		assertEquals("connection with an unknown command was not closed", -1,
+				s.getInputStream().read());
+		for (int i = 0; i < 100
+				&& ts.getStats().getConnections() > connections; i++)
+			Thread.sleep(20);
+		assertEquals("connection with an unknown command was not released",
+				connections, ts.getStats().getConnections());
+		s.close();
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ProxyRequestTest.class);
+	}
+}
@@ -0,0 +1,49 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test keeps a large chat history resident in the tuple space, removes
+ * parts of it and puts it back, checking that the index finds exactly the
+ * tuples that are stored while their slots are reused. The heap used per
+ * tuple is printed on standard error.
+ */
+public class ResidentTuplesTest extends TestCase {
+	public static final int TUPLES = 200000, CHANNELS = 10;
+
+	public void testResidentHistory() {
+		TupleSpace t = new LocalTupleSpace();
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long before = rt.totalMemory() - rt.freeMemory();
+		for (int i = 0; i < TUPLES; i++)
+			t.put("msg", "Channel" + (i % CHANNELS), Integer.toString(i));
+		System.gc();
+		long after = rt.totalMemory() - rt.freeMemory();
+		System.err.println("About " + (after - before) / TUPLES
+				+ " bytes per resident tuple");
+
+		assertEquals("readAll missed tuples of a channel", TUPLES / CHANNELS,
+				t.readAll("msg", "Channel3", null).length);
+		assertEquals("getAll took too many tuples", 1000, t.getAll(1000,
+				"msg", "Channel3", null).length);
+		for (int i = 0; i < TUPLES; i += CHANNELS)
+			t.tryGet("msg", "Channel0", Integer.toString(i));
+		assertNull("removed tuple was found", t.tryRead("msg", "Channel0",
+				null));
+		for (int i = 0; i < TUPLES; i += CHANNELS)
+			t.put("msg", "Channel0", "again" + i);
+		assertEquals("tuples in reused slots were lost", TUPLES / CHANNELS, t
+				.readAll("msg", "Channel0", null).length);
+		assertEquals("tuples of other channels were lost", TUPLES / CHANNELS
+				- 1000, t.readAll(null, "Channel3", null).length);
+		assertNotNull("tuple was not found", t.tryRead("msg", "Channel7",
+				"17"));
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(ResidentTuplesTest.class);
+	}
+}
@@ -0,0 +1,60 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test runs a TupleServer with selector threads, connects many proxies
+ * that stay idle and checks that they cost no threads while other proxies
+ * put, get and wait through the same server.
+ */
+public class SelectorServerTest extends TestCase {
+	public static final int IDLE = 200, IO_THREADS = 2;
+	TupleServer ts;
+
+	public void setUp() {
+		ts = Servers.start(IO_THREADS);
+	}
+
+	public void tearDown() {
+		ts.close();
+	}
+
+	public void testIdleProxies() {
+		int threads = Thread.activeCount();
+		TupleProxy[] idle = new TupleProxy[IDLE];
+		for (int i = 0; i < IDLE; i++)
+			idle[i] = new TupleProxy("localhost", ts.getPort());
+		TupleSpace t = new TupleProxy("localhost", ts.getPort());
+		t.put("Idle", "check");
+		assertNotNull("put through the server was lost", t.tryGet("Idle",
+				null));
+		/* Each proxy has its own reader thread; the server has none. */
+		assertTrue("server started a thread per connection",
+				Thread.activeCount() - threads < IDLE + 1 + IDLE / 2);
+	}
+
+	public void testWaitThroughServer() throws InterruptedException {
+		final TupleSpace putter = new TupleProxy("localhost", ts.getPort());
+		TupleSpace getter = new TupleProxy("localhost", ts.getPort());
+		Thread p = new Thread() {
+			public void run() {
+				for (int i = 0; i < 1000; i++)
+					putter.put("Waited", Integer.toString(i));
+			}
+		};
+		p.start();
+		for (int i = 0; i < 1000; i++)
+			assertEquals("get returned unexpected tuple", Integer.toString(i),
+					getter.get("Waited", Integer.toString(i))[1]);
+		p.join();
+		assertNull("timed get found a tuple that was not put", getter.get(50,
+				"Waited", null));
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(SelectorServerTest.class);
+	}
+}
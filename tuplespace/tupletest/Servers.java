@@ -0,0 +1,32 @@
+package tupletest;
+
+import tupleserver.TupleServer;
+
+/**
+ * Starts the TupleServers the tests talk to through proxies. The tests close
+ * their servers when done, which frees their ports and threads.
+ */
+public class Servers {
+	/*
+	 * Start a new server with io selector threads, or a thread per
+	 * connection if io is 0, like the -nio option of TupleServer.
+	 */
+	public static TupleServer start(int io) {
+		return start(new TupleServer(), io);
+	}
+
+	/* Start serving the given server, e.g. once its journal is open. */
+	public static TupleServer start(final TupleServer ts, final int io) {
+		Thread t = new Thread() {
+			public void run() {
+				if (io > 0)
+					ts.execute(io);
+				else
+					ts.execute();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return ts;
+	}
+}
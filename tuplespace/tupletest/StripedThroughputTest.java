@@ -0,0 +1,61 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import net.sourceforge.groboutils.junit.v1.TestRunnable;
+import net.sourceforge.groboutils.junit.v1.MultiThreadedTestRunner;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test lets several threads put and get tuples of independent tuple
+ * families (as different chat channels do) and compares the throughput of a
+ * tuple space with a single store monitor against a striped one. The numbers
+ * are printed on standard error; only the results are checked.
+ */
+public class StripedThroughputTest extends TestCase {
+	public static final int THREADS = 8, OPERATIONS = 50000;
+	static ConcTestRunner ctr;
+
+	public void testStripedThroughput() throws Throwable {
+		long single = runThroughput(new LocalTupleSpace(1));
+		long striped = runThroughput(new LocalTupleSpace());
+		System.err.println("Single monitor: " + opsPerSecond(single)
+				+ " ops/s, " + LocalTupleSpace.STRIPES + " stripes: "
+				+ opsPerSecond(striped) + " ops/s");
+	}
+
+	private long opsPerSecond(long nanos) {
+		return 2L * THREADS * OPERATIONS * 1000000000L / Math.max(1, nanos);
+	}
+
+	private long runThroughput(final TupleSpace t) throws Throwable {
+		TestRunnable tct[] = new TestRunnable[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final String family = "Channel" + i;
+			tct[i] = new TestRunnable() {
+				public void runTest() {
+					for (int j = 0; j < OPERATIONS; j++) {
+						String n = Integer.toString(j);
+						t.put(family, "msg", n);
+						String[] w = t.get(family, "msg", null);
+						assertEquals("get returned tuple of another family",
+								family, w[0]);
+						assertEquals("get returned unexpected tuple", n, w[2]);
+						if (j % 1000 == 0 && ctr != null)
+							ctr.resetWatchdog();
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		MultiThreadedTestRunner mttr = new MultiThreadedTestRunner(tct);
+		mttr.runTestRunnables();
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String args[]) {
+		ctr = new ConcTestRunner(args);
+		ctr.start(StripedThroughputTest.class);
+	}
+}
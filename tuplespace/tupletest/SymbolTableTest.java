@@ -0,0 +1,88 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test checks pattern matching where the ids of strings come and go:
+ * strings that leave the space free their id for other strings, and
+ * patterns may wait for strings that no tuple contains yet.
+ */
+public class SymbolTableTest extends TestCase {
+	TupleSpace t;
+
+	public void setUp() {
+		t = new LocalTupleSpace();
+	}
+
+	public void testReusedIds() {
+		for (int i = 0; i < 1000; i++) {
+			t.put("Reuse", "old" + i);
+			assertNotNull("tuple was not found", t.tryGet("Reuse", "old" + i));
+			t.put("Reuse", "new" + i);
+			assertNull("pattern matched a string that left the space", t
+					.tryRead("Reuse", "old" + i));
+			assertNotNull("tuple was not found", t.tryGet(null, "new" + i));
+		}
+	}
+
+	public void testManyStrings() {
+		for (int i = 0; i < 5000; i++)
+			t.put("Many", Integer.toString(i), Integer.toString(i % 7));
+		for (int i = 0; i < 5000; i += 2)
+			assertNotNull("tuple was not found", t.tryGet("Many", Integer
+					.toString(i), null));
+		for (int i = 0; i < 5000; i++) {
+			String[] r = t.tryRead(null, Integer.toString(i), Integer
+					.toString(i % 7));
+			if (i % 2 == 0)
+				assertNull("removed tuple was found", r);
+			else
+				assertNotNull("remaining tuple was lost", r);
+		}
+	}
+
+	public void testWaitForNewString() throws InterruptedException {
+		Thread putter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					throw new Error("Unexpected interruption");
+				}
+				t.put("Fresh", "never seen before");
+			}
+		};
+		putter.start();
+		assertNotNull("waiting read missed the tuple", t.read(null,
+				"never seen before"));
+		assertNotNull("waiting get missed the tuple", t.get("Fresh",
+				"never seen before"));
+		putter.join();
+	}
+
+	/*
+	 * A tuple taken by a waiting get is never stored, and its strings must
+	 * leave the symbol table with it.
+	 */
+	public void testHandedOverStrings() throws Exception {
+		AsyncTupleSpace a = (AsyncTupleSpace) t;
+		for (int i = 0; i < 1000; i++) {
+			java.util.concurrent.CompletableFuture<String[]> f = a.getAsync(
+					"Handed", null);
+			t.put("Handed", "over" + i);
+			assertEquals("waiting get missed the tuple", "over" + i, f.get()[1]);
+			t.put("Kept", "new" + i);
+			assertNull("tuple handed over was stored", t.tryRead(null, "over"
+					+ i));
+			assertNotNull("tuple was not found", t.tryGet(null, "new" + i));
+		}
+		assertEquals("tuple handed over was stored", 0, t.readAll("Handed",
+				null).length);
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(SymbolTableTest.class);
+	}
+}
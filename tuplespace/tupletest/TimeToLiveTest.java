@@ -0,0 +1,84 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tuplespaces.*;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test puts tuples with a time to live, locally and through a
+ * TupleServer, and checks that they are found until they expire and are
+ * gone after, unless a get took them before.
+ */
+public class TimeToLiveTest extends TestCase {
+	public static final int LEASES = 10000;
+	TupleServer ts;
+
+	public void setUp() {
+		ts = Servers.start(0);
+	}
+
+	public void tearDown() {
+		ts.close();
+	}
+
+	public void testExpiry() throws InterruptedException {
+		LocalTupleSpace t = new LocalTupleSpace();
+		long size = t.size();
+		t.put(100, "Lease", "short");
+		/* Beyond the lowest wheel, so its lease moves down a level. */
+		t.put(900, "Lease", "cascaded");
+		t.put(60000, "Lease", "long");
+		t.put("Lease", "forever");
+		assertNotNull("tuple expired too early", t.tryRead("Lease", "short"));
+		Thread.sleep(300);
+		assertNull("tuple did not expire", t.tryRead("Lease", "short"));
+		assertNotNull("tuple expired too early", t.tryRead("Lease", "long"));
+		assertNotNull("tuple without ttl expired", t.tryRead("Lease",
+				"forever"));
+		assertNotNull("tuple expired too early", t.tryRead("Lease",
+				"cascaded"));
+		Thread.sleep(1000);
+		assertNull("tuple did not expire", t.tryRead("Lease", "cascaded"));
+		assertEquals("expired tuple was counted", size + 2, t.size());
+	}
+
+	public void testTakenBeforeExpiry() throws InterruptedException {
+		LocalTupleSpace t = new LocalTupleSpace();
+		t.put(100, "Taken", "early");
+		assertNotNull("tuple was not found", t.tryGet("Taken", null));
+		t.put("Taken", "again");
+		Thread.sleep(300);
+		assertNotNull("expiry removed a tuple put after the leased one", t
+				.tryRead("Taken", "again"));
+	}
+
+	public void testManyLeases() throws InterruptedException {
+		LocalTupleSpace t = new LocalTupleSpace();
+		long size = t.size();
+		for (int i = 0; i < LEASES; i++)
+			t.put(10 + i % 500, "Many", Integer.toString(i));
+		for (int i = 0; i < LEASES; i += 3)
+			t.tryGet("Many", Integer.toString(i));
+		Thread.sleep(1000);
+		assertEquals("leased tuples did not all expire", 0, t.readAll("Many",
+				null).length);
+		assertEquals("expired tuples were counted", size, t.size());
+	}
+
+	public void testThroughServer() throws InterruptedException {
+		TupleSpace p = new TupleProxy("localhost", ts.getPort());
+		p.put(100, "Remote", "lease");
+		assertNotNull("tuple put with ttl was lost", p.tryRead("Remote", null));
+		Thread.sleep(300);
+		assertNull("tuple put with ttl did not expire", p.tryRead("Remote",
+				null));
+		TupleSpace v1 = new TupleProxy("localhost", ts.getPort(), 1);
+		v1.put(60000, "Remote", "v1");
+		assertNotNull("tuple put with ttl was lost", v1.tryGet("Remote", "v1"));
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(TimeToLiveTest.class);
+	}
+}
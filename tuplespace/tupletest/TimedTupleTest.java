@@ -0,0 +1,72 @@
+package tupletest;
+
+import junit.framework.*;
+import tuplespaces.*;
+import concassess.testee.*;
+
+/**
+ * This test checks the non-blocking and timed variants of get and read.
+ */
+public class TimedTupleTest extends TestCase {
+	TupleSpace t;
+
+	public void setUp() {
+		t = new LocalTupleSpace();
+	}
+
+	public void testTryGetAndRead() {
+		assertNull("tryRead returned a tuple from an empty space",
+				t.tryRead("Hello", null));
+		assertNull("tryGet returned a tuple from an empty space",
+				t.tryGet("Hello", null));
+		t.put("Hello", "World");
+		String[] r = t.tryRead("Hello", null);
+		assertNotNull("tryRead did not find the tuple that was put", r);
+		assertEquals("tryRead returned tuple other than the tuple that was put",
+				"World", r[1]);
+		r = t.tryGet(null, "World");
+		assertNotNull("tryGet did not find the tuple that was put", r);
+		assertNull("tryGet did not remove the tuple", t.tryGet("Hello", null));
+	}
+
+	public void testTimeout() {
+		long start = System.currentTimeMillis();
+		assertNull("timed get returned a tuple from an empty space",
+				t.get(100, "Hello", null));
+		assertFalse("timed get returned before the timeout",
+				System.currentTimeMillis() - start < 100);
+		assertNull("timed read returned a tuple from an empty space",
+				t.read(0, "Hello", null));
+	}
+
+	public void testTimedWakeUp() throws InterruptedException {
+		Thread putter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					throw new Error("Unexpected interruption");
+				}
+				t.put("Hello", "World");
+			}
+		};
+		putter.start();
+		String[] r = t.read(10000, "Hello", null);
+		assertNotNull("timed read missed a tuple put while waiting", r);
+		r = t.get(10000, "Hello", null);
+		assertNotNull("timed get missed a tuple that was read", r);
+		putter.join();
+	}
+
+	public void testInterrupt() {
+		Thread.currentThread().interrupt();
+		assertNull("interrupted timed get returned a tuple",
+				t.get(10000, "Hello", null));
+		assertTrue("interrupt status of timed get was cleared",
+				Thread.interrupted());
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(TimedTupleTest.class);
+	}
+}
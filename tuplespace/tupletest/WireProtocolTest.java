@@ -0,0 +1,61 @@
+package tupletest;
+
+import junit.framework.TestCase;
+import tupleserver.*;
+import concassess.testee.*;
+
+/**
+ * This test sends tuples through both versions of the TupleSocket format to
+ * a blocking and a selector TupleServer: fields with characters of every
+ * UTF-8 length, null pattern fields beyond the first bitmap byte and, in
+ * version 2, fields longer than writeUTF allows.
+ */
+public class WireProtocolTest extends TestCase {
+	TupleServer blocking, selector;
+	static final String TEXT = "a\u0000\u00e9\u4e2d\ud83d\ude00";
+
+	public void setUp() {
+		blocking = Servers.start(0);
+		selector = Servers.start(1);
+	}
+
+	public void tearDown() {
+		blocking.close();
+		selector.close();
+	}
+
+	private void roundTrip(TupleServer ts, int version, String big) {
+		TupleProxy p = new TupleProxy("localhost", ts.getPort(), version);
+		p.put("Wire", TEXT, big, "1", "2", "3", "4", "5", "6", "7");
+		String[] r = p.get("Wire", null, null, null, null, null, "4", null,
+				null, "7");
+		assertEquals("field changed on the way", TEXT, r[1]);
+		assertEquals("long field changed on the way", big, r[2]);
+		p.putAll(new String[] { "Wire", TEXT }, new String[] { "Wire", TEXT });
+		assertEquals("getAll did not return both tuples", 2, p.getAll(5,
+				"Wire", TEXT).length);
+		assertNull("timed get found a tuple that was not put", p.get(0,
+				"Wire", null));
+	}
+
+	private String repeat(int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++)
+			sb.append(TEXT);
+		return sb.toString();
+	}
+
+	public void testVersion1() {
+		roundTrip(blocking, 1, repeat(1000));
+		roundTrip(selector, 1, repeat(1000));
+	}
+
+	public void testVersion2() {
+		roundTrip(blocking, 2, repeat(20000));
+		roundTrip(selector, 2, repeat(20000));
+	}
+
+	public static void main(String[] args) {
+		new ConcTestRunner(args).start(WireProtocolTest.class);
+	}
+}